@@ -0,0 +1,148 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.voody.midilib.event.ChannelEvent;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.meta.MetaEvent;
+
+/**
+ * Secondary indices over the events of a MidiTrack, keyed by event class,
+ * channel event type and channel, and meta event type. Each bucket is a
+ * sorted set ordered like the track, so an edit costs O(log k) and a query
+ * returns its events in track order.
+ */
+class EventIndex {
+	
+	private static final int CHANNEL_TYPES = 7;
+	
+	private HashMap<Class<? extends MidiEvent>, TreeSet<MidiEvent>> mByClass;
+	private ArrayList<TreeSet<MidiEvent>> mByChannel;
+	private HashMap<Integer, TreeSet<MidiEvent>> mByMetaType;
+	
+	public EventIndex() {
+		mByClass = new HashMap<Class<? extends MidiEvent>, TreeSet<MidiEvent>>();
+		mByChannel = new ArrayList<TreeSet<MidiEvent>>(CHANNEL_TYPES * 16);
+		for(int i = 0; i < CHANNEL_TYPES * 16; i++) {
+			mByChannel.add(null);
+		}
+		mByMetaType = new HashMap<Integer, TreeSet<MidiEvent>>();
+	}
+	
+	public void add(MidiEvent E) {
+		
+		TreeSet<MidiEvent> set = mByClass.get(E.getClass());
+		if(set == null) {
+			set = new TreeSet<MidiEvent>();
+			mByClass.put(E.getClass(), set);
+		}
+		set.add(E);
+		
+		if(E instanceof ChannelEvent) {
+			ChannelEvent ce = (ChannelEvent)E;
+			int slot = channelSlot(ce.getType(), ce.getChannel());
+			if(slot >= 0) {
+				set = mByChannel.get(slot);
+				if(set == null) {
+					set = new TreeSet<MidiEvent>();
+					mByChannel.set(slot, set);
+				}
+				set.add(E);
+			}
+		}
+		else if(E instanceof MetaEvent) {
+			Integer type = ((MetaEvent)E).getType();
+			set = mByMetaType.get(type);
+			if(set == null) {
+				set = new TreeSet<MidiEvent>();
+				mByMetaType.put(type, set);
+			}
+			set.add(E);
+		}
+	}
+	
+	public void remove(MidiEvent E) {
+		
+		removeFrom(mByClass.get(E.getClass()), E);
+		
+		if(E instanceof ChannelEvent) {
+			ChannelEvent ce = (ChannelEvent)E;
+			int slot = channelSlot(ce.getType(), ce.getChannel());
+			if(slot >= 0) {
+				removeFrom(mByChannel.get(slot), E);
+			}
+		}
+		else if(E instanceof MetaEvent) {
+			removeFrom(mByMetaType.get(((MetaEvent)E).getType()), E);
+		}
+	}
+	
+	/**
+	 * The events of exactly the given class, as a new list.
+	 */
+	public List<MidiEvent> get(Class<? extends MidiEvent> type) {
+		return toList(mByClass.get(type));
+	}
+	
+	public List<MidiEvent> get(int type, int channel) {
+		int slot = channelSlot(type, channel);
+		if(slot < 0) {
+			return new ArrayList<MidiEvent>();
+		}
+		return toList(mByChannel.get(slot));
+	}
+	
+	public List<MidiEvent> getMeta(int type) {
+		return toList(mByMetaType.get(type));
+	}
+	
+	private static int channelSlot(int type, int channel) {
+		if(type < ChannelEvent.NOTE_OFF || type > ChannelEvent.PITCH_BEND || channel < 0 || channel > 15) {
+			return -1;
+		}
+		return (type - ChannelEvent.NOTE_OFF) * 16 + channel;
+	}
+	
+	private static List<MidiEvent> toList(TreeSet<MidiEvent> set) {
+		if(set == null) {
+			return new ArrayList<MidiEvent>();
+		}
+		return new ArrayList<MidiEvent>(set);
+	}
+	
+	private static void removeFrom(TreeSet<MidiEvent> set, MidiEvent E) {
+		if(set == null || set.remove(E)) {
+			return;
+		}
+		
+		// Not found by comparison if its delta was changed in place since it
+		// was added, so look for the event itself
+		Iterator<MidiEvent> it = set.iterator();
+		while(it.hasNext()) {
+			if(it.next() == E) {
+				it.remove();
+				return;
+			}
+		}
+	}
+}
@@ -23,8 +23,15 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.RoundingMode;
 import java.util.ArrayList;
 
+import com.voody.midilib.event.ChannelEvent;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.meta.EndOfTrack;
+import com.voody.midilib.util.MergedEventIterator;
+import com.voody.midilib.util.MidiCache;
+import com.voody.midilib.util.MidiTransforms;
 import com.voody.midilib.util.MidiUtil;
 
 public class MidiFile {
@@ -40,6 +47,10 @@ public class MidiFile {
 	
 	private ArrayList<MidiTrack> mTracks;
 	
+	private long mModificationCount;
+	private long mTempoModificationCount;
+	private MidiCache mCache;
+	
 	public MidiFile() {
 		this(DEFAULT_RESOLUTION);
 	}
@@ -99,12 +110,44 @@ public class MidiFile {
 	public void setResolution(int res) {
 		if(res >= 0) {
 			mResolution = res;
+			mModificationCount++;
+			mTempoModificationCount++;
 		}
 	}
 	public int getResolution() {
 		return mResolution;
 	}
 	
+	/**
+	 * Changes the resolution and moves every event to the same musical
+	 * position at the new one. Ticks are scaled by newPpq / oldPpq exactly
+	 * and rounded with the given mode, so events never change order.
+	 *
+	 * Events rounded onto the same tick are ordered as by
+	 * MidiTrack.replaceEvents(), and identical ones are merged. A note is
+	 * never made shorter than one tick, so its end cannot be rounded onto or
+	 * before its start. Tracks are rescaled in parallel. A file holding a
+	 * snapshot track is left unchanged, as is one with a tick that does not
+	 * scale exactly under RoundingMode.UNNECESSARY, for which the
+	 * ArithmeticException is thrown.
+	 */
+	public void rescaleResolution(int newPpq, RoundingMode mode) {
+		
+		if(newPpq <= 0 || mResolution <= 0) {
+			System.err.println("Error: Cannot rescale to or from a resolution of " + (newPpq <= 0 ? newPpq : mResolution));
+			return;
+		}
+		if(!checkWritable()) {
+			return;
+		}
+		
+		MidiTransforms transforms = new MidiTransforms();
+		transforms.setTimeScale(newPpq, mResolution, mode);
+		transforms.apply(this);
+		
+		setResolution(newPpq);
+	}
+	
 	public long getLengthInTicks() {
 		long length = 0;
 		for(MidiTrack T : mTracks) {
@@ -116,6 +159,71 @@ public class MidiFile {
 		return length;
 	}
 	
+	/**
+	 * A read-only, point-in-time view of the file in O(tracks), independent
+	 * of the number of events. The snapshot can be played or written while
+	 * the live file keeps being edited; see MidiTrack.snapshot().
+	 */
+	public MidiFile snapshot() {
+		
+		ArrayList<MidiTrack> tracks = new ArrayList<MidiTrack>(mTracks.size());
+		for(MidiTrack T : mTracks) {
+			tracks.add(T.snapshot());
+		}
+		
+		MidiFile snapshot = new MidiFile(mResolution, tracks);
+		snapshot.mType = mType;
+		return snapshot;
+	}
+	
+	/**
+	 * Size in bytes of the file writeToFile() would produce, in O(tracks).
+	 */
+	public long getSize() {
+		long size = HEADER_SIZE;
+		for(MidiTrack T : mTracks) {
+			size += MidiTrack.IDENTIFIER.length + 4 + T.getSize();
+			if(!T.isClosed()) {
+				size += 4;		// EndOfTrack added on write
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Changes whenever the file or any of its tracks changes.
+	 */
+	public long getModificationCount() {
+		long count = mModificationCount;
+		for(MidiTrack T : mTracks) {
+			count += T.getModificationCount();
+		}
+		return count;
+	}
+	
+	/**
+	 * Changes whenever a Tempo event is added or removed, or the resolution
+	 * or the set of tracks changes.
+	 */
+	public long getTempoModificationCount() {
+		long count = mTempoModificationCount;
+		for(MidiTrack T : mTracks) {
+			count += T.getTempoModificationCount();
+		}
+		return count;
+	}
+	
+	/**
+	 * Derived values of this file (length, tempo map, note indices...),
+	 * recomputed only when their inputs change.
+	 */
+	public synchronized MidiCache getCache() {
+		if(mCache == null) {
+			mCache = new MidiCache(this);
+		}
+		return mCache;
+	}
+	
 	public ArrayList<MidiTrack> getTracks() {
 		return mTracks;
 	}
@@ -134,6 +242,8 @@ public class MidiFile {
 		}
 		
 		mTracks.add(pos, T);
+		mModificationCount++;
+		mTempoModificationCount++;
 		mTrackCount = mTracks.size();
 		mType = mTrackCount > 1 ? 1 : 0;
 	}
@@ -142,13 +252,153 @@ public class MidiFile {
 		if(pos < 0 || pos >= mTracks.size()) {
 			return;
 		}
-		mTracks.remove(pos);
+		MidiTrack T = mTracks.remove(pos);
+		
+		// Keep the file's counts from going backwards with the track's
+		mModificationCount += T.getModificationCount() + 1;
+		mTempoModificationCount += T.getTempoModificationCount() + 1;
+		mTrackCount = mTracks.size();
+		mType = mTrackCount > 1 ? 1 : 0;
+	}
+	
+	/**
+	 * Merges all tracks into a single track, making this a type 0 file. The
+	 * events are moved, not copied, in one pass over a merge of the tracks.
+	 * At equal ticks, events of earlier tracks come first. If a track is
+	 * concurrent or has snapshots, events whose delta changes are copied.
+	 */
+	public void toType0() {
+		
+		if(!checkWritable()) {
+			return;
+		}
+		
+		ArrayList<MidiEvent> events = new ArrayList<MidiEvent>(countEvents());
+		EndOfTrack eot = null;
+		
+		MergedEventIterator it = new MergedEventIterator(mTracks);
+		while(it.hasNext()) {
+			MidiEvent E = it.next();
+			if(E.getClass().equals(EndOfTrack.class)) {
+				eot = (EndOfTrack)E;
+				continue;
+			}
+			events.add(E);
+		}
+		if(eot != null) {
+			events.add(eot);
+		}
+		
+		MidiTrack T = new MidiTrack();
+		T.replaceEvents(events, isShared());
+		
+		ArrayList<MidiTrack> tracks = new ArrayList<MidiTrack>();
+		tracks.add(T);
+		setTracks(tracks);
+	}
+	
+	/**
+	 * Splits the events into a conductor track, holding every event that
+	 * is not a channel event (tempo, time signatures, SysEx...), followed by
+	 * one track for each channel in use, in channel order. Makes this a type
+	 * 1 file. Like toType0(), events are moved in a single pass, copying
+	 * those whose delta changes if a track is shared. The last EndOfTrack,
+	 * if any, is kept in the conductor track.
+	 */
+	public void splitByChannel() {
+		
+		if(!checkWritable()) {
+			return;
+		}
+		
+		ArrayList<MidiEvent> conductor = new ArrayList<MidiEvent>();
+		EndOfTrack eot = null;
+		ArrayList<ArrayList<MidiEvent>> channels = new ArrayList<ArrayList<MidiEvent>>(16);
+		for(int c = 0; c < 16; c++) {
+			channels.add(null);
+		}
+		
+		MergedEventIterator it = new MergedEventIterator(mTracks);
+		while(it.hasNext()) {
+			MidiEvent E = it.next();
+			if(E instanceof ChannelEvent) {
+				int c = ((ChannelEvent)E).getChannel();
+				ArrayList<MidiEvent> list = channels.get(c);
+				if(list == null) {
+					list = new ArrayList<MidiEvent>();
+					channels.set(c, list);
+				}
+				list.add(E);
+			}
+			else if(E.getClass().equals(EndOfTrack.class)) {
+				eot = (EndOfTrack)E;
+			}
+			else {
+				conductor.add(E);
+			}
+		}
+		if(eot != null) {
+			conductor.add(eot);
+		}
+		
+		boolean shared = isShared();
+		ArrayList<MidiTrack> tracks = new ArrayList<MidiTrack>();
+		MidiTrack T = new MidiTrack();
+		T.replaceEvents(conductor, shared);
+		tracks.add(T);
+		
+		for(ArrayList<MidiEvent> list : channels) {
+			if(list != null) {
+				T = new MidiTrack();
+				T.replaceEvents(list, shared);
+				tracks.add(T);
+			}
+		}
+		setTracks(tracks);
+	}
+	
+	private boolean isShared() {
+		for(MidiTrack T : mTracks) {
+			if(T.isShared()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean checkWritable() {
+		for(MidiTrack T : mTracks) {
+			if(T.isReadOnly()) {
+				System.err.println("Error: Cannot move the events of a snapshot track.");
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private int countEvents() {
+		int count = 0;
+		for(MidiTrack T : mTracks) {
+			count += T.getEventCount();
+		}
+		return count;
+	}
+	
+	private void setTracks(ArrayList<MidiTrack> tracks) {
+		for(MidiTrack T : mTracks) {
+			mModificationCount += T.getModificationCount();
+			mTempoModificationCount += T.getTempoModificationCount();
+		}
+		mModificationCount++;
+		mTempoModificationCount++;
+		
+		mTracks = tracks;
 		mTrackCount = mTracks.size();
 		mType = mTrackCount > 1 ? 1 : 0;
 	}
 	
 	public void writeToFile(File outFile) throws FileNotFoundException, IOException {
-				
+		
 		FileOutputStream fout = new FileOutputStream(outFile);
 		
 		fout.write(IDENTIFIER);
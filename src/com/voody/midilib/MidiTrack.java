@@ -16,15 +16,27 @@
 
 package com.voody.midilib;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 
+import com.voody.midilib.event.ChannelEvent;
 import com.voody.midilib.event.MidiEvent;
 import com.voody.midilib.event.NoteOn;
 import com.voody.midilib.event.meta.EndOfTrack;
+import com.voody.midilib.event.meta.MetaEvent;
 import com.voody.midilib.event.meta.Tempo;
 import com.voody.midilib.event.meta.TimeSignature;
 import com.voody.midilib.util.MidiUtil;
@@ -34,14 +46,23 @@ import com.voody.midilib.util.VariableLengthInt;
 public class MidiTrack {
 	
 	private static final boolean VERBOSE = false;
-
+	
 	public static final byte[] IDENTIFIER = { 'M', 'T', 'r', 'k' };
 	
 	private int mSize;
 	private boolean mSizeNeedsRecalculating;
 	private boolean mClosed;
 	
-	private TreeSet<MidiEvent> mEvents;
+	private volatile TreeSet<MidiEvent> mEvents;
+	private EventIndex mIndex;
+	
+	private volatile long mModificationCount;
+	private volatile long mTempoModificationCount;
+	
+	private boolean mConcurrent;
+	private boolean mShared;
+	private boolean mReadOnly;
+	private final ReentrantLock mWriteLock = new ReentrantLock();
 	
 	public static MidiTrack createTempoTrack() {
 		
@@ -60,6 +81,16 @@ public class MidiTrack {
 		mClosed = false;
 	}
 	
+	private MidiTrack(TreeSet<MidiEvent> events, boolean closed, long modCount, long tempoModCount) {
+		mEvents = events;
+		mModificationCount = modCount;
+		mTempoModificationCount = tempoModCount;
+		mSize = 0;
+		mSizeNeedsRecalculating = true;
+		mClosed = closed;
+		mReadOnly = true;
+	}
+	
 	public MidiTrack(InputStream in) throws IOException {
 		this();
 		
@@ -90,25 +121,265 @@ public class MidiTrack {
 			if(VERBOSE) {
 				System.out.println(E);
 			}
-
+			
 			// Not adding the EndOfTrack event here allows the track to be edited
 			// after being read in from file.
 			if(E.getClass().equals(EndOfTrack.class)) {
 				break;
 			}
 			mEvents.add(E);
-			
+		
 		}
+		
+		// The header size includes the EndOfTrack event we dropped
+		mSizeNeedsRecalculating = true;
 	}
 	
+	/**
+	 * In concurrent mode this is an immutable point-in-time view of the
+	 * track: edits publish a new set rather than modifying the one returned
+	 * here, so it may be iterated while another thread edits the track.
+	 * Callers must not modify it.
+	 */
 	public TreeSet<MidiEvent> getEvents() {
 		return mEvents;
 	}
 	
+	/**
+	 * Events from fromTick up to, but not including, toTick, found in
+	 * O(log n). The same rules as for getEvents() apply to the view.
+	 */
+	public SortedSet<MidiEvent> getEvents(long fromTick, long toTick) {
+		if(toTick < fromTick) {
+			toTick = fromTick;
+		}
+		return mEvents.subSet(new TickProbe(fromTick), new TickProbe(toTick));
+	}
+	
+	/**
+	 * Concurrent mode allows one or more threads to edit the track while
+	 * others iterate it, e.g. editing during playback. Edits are serialized
+	 * among writers and copy the event set before publishing the result,
+	 * so readers never block and never see a set change under them.
+	 */
+	public void setConcurrent(boolean concurrent) {
+		mWriteLock.lock();
+		try {
+			mConcurrent = concurrent;
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+	public boolean isConcurrent() {
+		return mConcurrent;
+	}
+	
+	/**
+	 * A read-only, point-in-time view of this track in O(1). The snapshot
+	 * shares the current event set; the live track copies it on its next
+	 * edit, so later insertions and removals do not show in the snapshot.
+	 * The events themselves are shared, so changing one in place (setTick,
+	 * setVelocity...) is visible in both. Edits through the track copy an
+	 * event rather than change a delta the snapshot orders it by.
+	 */
+	public MidiTrack snapshot() {
+		mWriteLock.lock();
+		try {
+			mShared = true;
+			return new MidiTrack(mEvents, mClosed, mModificationCount, mTempoModificationCount);
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+	public boolean isReadOnly() {
+		return mReadOnly;
+	}
+	
+	// Whether the track's events may still be held by a snapshot or by a
+	// concurrent reader of an earlier event set
+	boolean isShared() {
+		mWriteLock.lock();
+		try {
+			return mConcurrent || mShared;
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+	
+	private TreeSet<MidiEvent> beginEdit() {
+		mWriteLock.lock();
+		if(mConcurrent || mShared) {
+			mShared = false;
+			return new TreeSet<MidiEvent>(mEvents);
+		}
+		return mEvents;
+	}
+	
+	private void endEdit(TreeSet<MidiEvent> events) {
+		mEvents = events;
+		mWriteLock.unlock();
+	}
+	
 	public int getEventCount() {
 		return mEvents.size();
 	}
 	
+	/**
+	 * Secondary indices by event class, channel event type and channel, and
+	 * meta event type. Disabled by default; enabling builds them from the
+	 * current events, after which they are kept up to date on every edit.
+	 */
+	public void setIndexingEnabled(boolean enabled) {
+		mWriteLock.lock();
+		try {
+			if(!enabled) {
+				mIndex = null;
+				return;
+			}
+			if(mIndex != null) {
+				return;
+			}
+			
+			EventIndex index = new EventIndex();
+			for(MidiEvent E : mEvents) {
+				index.add(E);
+			}
+			mIndex = index;
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+	public boolean isIndexingEnabled() {
+		return mIndex != null;
+	}
+	
+	/**
+	 * Events of exactly the given class, in track order. O(k) when indexing
+	 * is enabled, otherwise a scan of the whole track.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends MidiEvent> List<T> getEvents(Class<T> type) {
+		List<MidiEvent> indexed = queryIndex(type, -1, 0, 0);
+		if(indexed != null) {
+			return (List<T>)indexed;
+		}
+		
+		ArrayList<T> result = new ArrayList<T>();
+		for(MidiEvent E : mEvents) {
+			if(E.getClass().equals(type)) {
+				result.add((T)E);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Channel events of the given type (ChannelEvent.NOTE_ON, CONTROLLER, ...)
+	 * on the given channel, in track order.
+	 */
+	public List<MidiEvent> getEvents(int type, int channel) {
+		List<MidiEvent> indexed = queryIndex(null, type, channel, 0);
+		if(indexed != null) {
+			return indexed;
+		}
+		
+		ArrayList<MidiEvent> result = new ArrayList<MidiEvent>();
+		for(MidiEvent E : mEvents) {
+			if(E instanceof ChannelEvent) {
+				ChannelEvent ce = (ChannelEvent)E;
+				if(ce.getType() == type && ce.getChannel() == channel) {
+					result.add(E);
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Meta events of the given type (MetaEvent.TEMPO, MARKER, ...), in track order.
+	 */
+	public List<MidiEvent> getMetaEvents(int type) {
+		List<MidiEvent> indexed = queryIndex(null, -1, 0, type);
+		if(indexed != null) {
+			return indexed;
+		}
+		
+		ArrayList<MidiEvent> result = new ArrayList<MidiEvent>();
+		for(MidiEvent E : mEvents) {
+			if(E instanceof MetaEvent && ((MetaEvent)E).getType() == type) {
+				result.add(E);
+			}
+		}
+		return result;
+	}
+	
+	// Looks up events of the class, of the channel type on the channel, or
+	// of the meta type, in that order of precedence; null without an index.
+	// Index buckets are edited in place, so they are copied out under the
+	// lock for readers in concurrent mode.
+	private List<MidiEvent> queryIndex(Class<? extends MidiEvent> type, int channelType, int channel, int metaType) {
+		boolean lock = mConcurrent;
+		if(lock) {
+			mWriteLock.lock();
+		}
+		try {
+			EventIndex index = mIndex;
+			if(index == null) {
+				return null;
+			}
+			if(type != null) {
+				return index.get(type);
+			}
+			if(channelType >= 0) {
+				return index.get(channelType, channel);
+			}
+			return index.getMeta(metaType);
+		} finally {
+			if(lock) {
+				mWriteLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Incremented on every change to the track, so values derived from it
+	 * can be cached against the count (see MidiCache).
+	 */
+	public long getModificationCount() {
+		return mModificationCount;
+	}
+	
+	/**
+	 * Incremented only when Tempo events are added or removed.
+	 */
+	public long getTempoModificationCount() {
+		return mTempoModificationCount;
+	}
+	
+	/**
+	 * Call after changing events of this track in place (setTick,
+	 * setChannel, setMpqn...) so the size, indices and anything cached
+	 * against the modification count are brought up to date.
+	 */
+	public void markModified() {
+		mWriteLock.lock();
+		try {
+			mModificationCount++;
+			mTempoModificationCount++;
+			mSizeNeedsRecalculating = true;
+			
+			if(mIndex != null) {
+				EventIndex index = new EventIndex();
+				for(MidiEvent E : mEvents) {
+					index.add(E);
+				}
+				mIndex = index;
+			}
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+	
 	public int getSize() {
 		if(mSizeNeedsRecalculating) {
 			recalculateSize();
@@ -141,45 +412,44 @@ public class MidiTrack {
 			System.err.println("Error: Cannot add an event to a closed track.");
 			return;
 		}
+		if(mReadOnly) {
+			System.err.println("Error: Cannot add an event to a snapshot track.");
+			return;
+		}
 		
-		Iterator<MidiEvent> it = mEvents.iterator();
-		MidiEvent prev = null, next = null;
-		while(it.hasNext()) {
-			next = it.next();
+		TreeSet<MidiEvent> events = beginEdit();
+		try {
+			MidiEvent prev = lastAtOrBefore(events, newEvent.getTick());
+			MidiEvent next = firstAfter(events, newEvent.getTick());
 			
-			if(next.getTick() > newEvent.getTick()) {
-				break;
+			if(newEvent.getClass().equals(EndOfTrack.class) && next != null) {
+				throw new IllegalArgumentException("Attempting to insert EndOfTrack before an existing event. Use closeTrack() when finished with MidiTrack.");
 			}
 			
-			prev = next;
-			next = null;
-		}
-		
-		mEvents.add(newEvent);
-		mSizeNeedsRecalculating = true;
-		
-		// Set its delta time based on the previous event (or itself if no previous event exists)
-		if(prev != null) {
-			newEvent.setDelta(newEvent.getTick() - prev.getTick());
-		} else {
-			newEvent.setDelta(newEvent.getTick());
-		}
-		
-		// Update the next event's delta time relative to the new event.
-		if(next != null) {
-			next.setDelta(next.getTick() - newEvent.getTick());
-		}
-		
-		mSize += newEvent.getSize();
-		
-		if(newEvent.getClass().equals(EndOfTrack.class)) {
+			// Set its delta time based on the previous event (or itself if no previous event exists)
+			if(prev != null) {
+				newEvent.setDelta(newEvent.getTick() - prev.getTick());
+			} else {
+				newEvent.setDelta(newEvent.getTick());
+			}
+			
+			if(!addEvent(events, newEvent)) {
+				return;
+			}
+			
+			// Update the next event's delta time relative to the new event.
 			if(next != null) {
-				throw new IllegalArgumentException("Attempting to insert EndOfTrack before an existing event. Use closeTrack() when finished with MidiTrack.");
+				updateDelta(events, next, next.getTick() - newEvent.getTick());
 			}
-			mClosed = true;
+			
+			if(newEvent.getClass().equals(EndOfTrack.class)) {
+				mClosed = true;
+			}
+		} finally {
+			endEdit(events);
 		}
 	}
-
+	
 	// Added by Assen Totin, assen.totin@gmail.com
 	// Appends a MIDI event to the track
 	public void appendEvent(MidiEvent newEvent) {
@@ -190,56 +460,357 @@ public class MidiTrack {
 			System.err.println("Error: Cannot append an event to a closed track.");
 			return;
 		}
-
+		if(mReadOnly) {
+			System.err.println("Error: Cannot append an event to a snapshot track.");
+			return;
+		}
+		
 		//MidiEvent last = mEvents.last();
 		//newEvent.setTick(newEvent.getTick() + last.getTick());
-
-		mEvents.add(newEvent);
-		mSizeNeedsRecalculating = true;
-		mSize += newEvent.getSize();
-
-		if(newEvent.getClass().equals(EndOfTrack.class)) {
-			mClosed = true;
+		
+		TreeSet<MidiEvent> events = beginEdit();
+		try {
+			if(!addEvent(events, newEvent)) {
+				return;
+			}
+			
+			if(newEvent.getClass().equals(EndOfTrack.class)) {
+				mClosed = true;
+			}
+		} finally {
+			endEdit(events);
 		}
 	}
 	
-	public boolean removeEvent(MidiEvent E) {
+	/**
+	 * Replaces all events of the track in one pass, for edits that change
+	 * the ticks or values of many events at once (rescaling, transposing...).
+	 * Events are ordered by tick, keeping their given order at equal ticks
+	 * as far as their comparison allows: the first event given at each tick
+	 * stays first. Events that compare as identical are merged, and an
+	 * EndOfTrack is moved after the last event. In concurrent mode or after
+	 * snapshot(), events whose delta changes are replaced with copies, as
+	 * the old event set may still hold them.
+	 */
+	public void replaceEvents(Collection<? extends MidiEvent> newEvents) {
+		replaceEvents(newEvents, false);
+	}
+	
+	// With copy set, events whose delta changes are always copied, for
+	// events moved over from other tracks that may be shared. The track then
+	// treats its events as shared until its next replaceEvents()
+	void replaceEvents(Collection<? extends MidiEvent> newEvents, boolean copy) {
 		
-		Iterator<MidiEvent> it = mEvents.iterator();
-		MidiEvent prev = null, curr = null, next = null;
-
-		while(it.hasNext()) {
-			next = it.next();
-			
-			if(E.equals(curr)) {
-				break;
+		if(mReadOnly) {
+			System.err.println("Error: Cannot replace the events of a snapshot track.");
+			return;
+		}
+		
+		ArrayList<MidiEvent> sorted = new ArrayList<MidiEvent>(newEvents);
+		Collections.sort(sorted, TICK_ORDER);
+		
+		// Deltas take part in the comparison, so they are set before adding
+		boolean shared = copy || mConcurrent || mShared;
+		long lastTick = 0;
+		MidiEvent eot = null;
+		for(int i = 0; i < sorted.size(); i++) {
+			MidiEvent E = sorted.get(i);
+			if(E.getClass().equals(EndOfTrack.class)) {
+				eot = sorted.remove(i--);
+				continue;
+			}
+			if(E.getDelta() != E.getTick() - lastTick) {
+				if(shared) {
+					E = E.copy(E.getTick());
+					sorted.set(i, E);
+				}
+				E.setDelta(E.getTick() - lastTick);
 			}
+			lastTick = E.getTick();
+		}
+		if(eot != null) {
+			if(shared) {
+				eot = eot.copy(eot.getTick());
+			}
+			eot.setTick(Math.max(eot.getTick(), lastTick));
+			eot.setDelta(eot.getTick() - lastTick);
+			sorted.add(eot);
+		}
+		
+		// When each event would be added after the one before it, as is
+		// usual, the set is built in linear time
+		boolean ordered = true;
+		for(int i = 1; i < sorted.size() && ordered; i++) {
+			ordered = sorted.get(i).compareTo(sorted.get(i - 1)) > 0;
+		}
+		TreeSet<MidiEvent> events;
+		if(ordered) {
+			events = new TreeSet<MidiEvent>(new SortedList(sorted));
+		} else {
+			events = new TreeSet<MidiEvent>();
+			events.addAll(sorted);
+		}
+		
+		mWriteLock.lock();
+		try {
+			mEvents = events;
+			// Events moved over with copy set may still be held elsewhere
+			mShared = copy;
+			mClosed = eot != null;
+			mModificationCount++;
+			mTempoModificationCount++;
 			
-			prev = curr;
-			curr = next;
-			next = null;
+			if(mIndex != null) {
+				EventIndex index = new EventIndex();
+				for(MidiEvent E : events) {
+					index.add(E);
+				}
+				mIndex = index;
+			}
+			recalculateSize();
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+	
+	/**
+	 * Lets a TreeSet be built from a list already in order without comparing.
+	 * The constructor only needs its comparator, size and iterator; the views
+	 * are sublists found by binary search.
+	 */
+	private static class SortedList extends AbstractCollection<MidiEvent> implements SortedSet<MidiEvent> {
+		
+		private List<MidiEvent> mList;
+		
+		public SortedList(List<MidiEvent> list) {
+			mList = list;
+		}
+		
+		@Override
+		public Iterator<MidiEvent> iterator() {
+			return mList.iterator();
+		}
+		@Override
+		public int size() {
+			return mList.size();
 		}
 		
-		if(next == null) {
-			// Either the event was not found in the track,
-			// or this is the last event in the track.
-			// Either way, we won't need to update any delta times
-			return mEvents.remove(curr);
+		public Comparator<? super MidiEvent> comparator() {
+			return null;
+		}
+		public MidiEvent first() {
+			if(mList.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			return mList.get(0);
+		}
+		public MidiEvent last() {
+			if(mList.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			return mList.get(mList.size() - 1);
+		}
+		public SortedSet<MidiEvent> subSet(MidiEvent from, MidiEvent to) {
+			return new SortedList(mList.subList(indexOf(from), indexOf(to)));
+		}
+		public SortedSet<MidiEvent> headSet(MidiEvent to) {
+			return new SortedList(mList.subList(0, indexOf(to)));
+		}
+		public SortedSet<MidiEvent> tailSet(MidiEvent from) {
+			return new SortedList(mList.subList(indexOf(from), mList.size()));
 		}
 		
-		if(!mEvents.remove(curr)) {
+		// Index of the first event not ordered before E
+		private int indexOf(MidiEvent E) {
+			int lo = 0, hi = mList.size();
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(mList.get(mid).compareTo(E) < 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+	
+	private static final Comparator<MidiEvent> TICK_ORDER = new Comparator<MidiEvent>() {
+		public int compare(MidiEvent a, MidiEvent b) {
+			if(a.getTick() != b.getTick()) {
+				return a.getTick() < b.getTick() ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+	
+	public boolean removeEvent(MidiEvent E) {
+		
+		if(mReadOnly) {
+			System.err.println("Error: Cannot remove an event from a snapshot track.");
 			return false;
 		}
 		
-		if(prev != null) {
-			next.setDelta(next.getTick() - prev.getTick());
-		} else {
-			next.setDelta(next.getTick());
+		TreeSet<MidiEvent> events = beginEdit();
+		try {
+			return removeEvent(events, E);
+		} finally {
+			endEdit(events);
+		}
+	}
+	
+	private boolean removeEvent(TreeSet<MidiEvent> events, MidiEvent E) {
+		
+		if(E == null || events.size() == 0) {
+			return false;
+		}
+		
+		MidiEvent prev = null;
+		Iterator<MidiEvent> it = events.tailSet(E).iterator();
+		
+		if(it.hasNext() && it.next() == E) {
+			prev = events.first() == E ? null : events.headSet(E).last();
+		}
+		else {
+			// Events of different classes at the same tick do not always
+			// order consistently, so a lookup can miss. Fall back to a scan.
+			it = events.iterator();
+			boolean found = false;
+			while(it.hasNext()) {
+				MidiEvent curr = it.next();
+				if(curr == E) {
+					found = true;
+					break;
+				}
+				prev = curr;
+			}
+			if(!found) {
+				return false;
+			}
+		}
+		
+		it.remove();
+		MidiEvent next = it.hasNext() ? it.next() : null;
+		
+		mSize -= sizeAfter(E, prev);
+		if(next != null) {
+			mSize -= sizeAfter(next, E);
+		}
+		
+		if(mIndex != null) {
+			mIndex.remove(E);
+		}
+		modified(E);
+		
+		if(next != null) {
+			next = updateDelta(events, next, prev != null ? next.getTick() - prev.getTick() : next.getTick());
+			mSize += sizeAfter(next, prev);
 		}
 		return true;
 	}
 	
+	// Sets the delta of an event in the set being edited and returns the
+	// event now in the set. Deltas order events at the same tick, so when
+	// the set was copied because the old one is still read (by a snapshot,
+	// or by readers in concurrent mode) and the event shares its tick with
+	// another, it is replaced with a copy instead of being changed under
+	// those readers.
+	private MidiEvent updateDelta(TreeSet<MidiEvent> events, MidiEvent E, long delta) {
+		
+		if(E.getDelta() == delta) {
+			return E;
+		}
+		if(events == mEvents || !sharesTick(events, E)) {
+			E.setDelta(delta);
+			return E;
+		}
+		
+		MidiEvent copy = E.copy(E.getTick());
+		copy.setDelta(delta);
+		events.remove(E);
+		events.add(copy);
+		if(mIndex != null) {
+			mIndex.remove(E);
+			mIndex.add(copy);
+		}
+		return copy;
+	}
+	
+	private static boolean sharesTick(TreeSet<MidiEvent> events, MidiEvent E) {
+		SortedSet<MidiEvent> before = events.headSet(E);
+		if(!before.isEmpty() && before.last().getTick() == E.getTick()) {
+			return true;
+		}
+		Iterator<MidiEvent> it = events.tailSet(E).iterator();
+		it.next();
+		return it.hasNext() && it.next().getTick() == E.getTick();
+	}
+	
+	// Adds the event and updates the size for the running status change on
+	// either side of it, looking only at its neighbours.
+	private boolean addEvent(TreeSet<MidiEvent> events, MidiEvent E) {
+		
+		if(!events.add(E)) {
+			return false;
+		}
+		if(mIndex != null) {
+			mIndex.add(E);
+		}
+		modified(E);
+		
+		MidiEvent prev = events.first() == E ? null : events.headSet(E).last();
+		Iterator<MidiEvent> it = events.tailSet(E).iterator();
+		it.next();
+		MidiEvent next = it.hasNext() ? it.next() : null;
+		
+		if(next != null) {
+			mSize -= sizeAfter(next, prev);
+			mSize += sizeAfter(next, E);
+		}
+		mSize += sizeAfter(E, prev);
+		return true;
+	}
+	
+	private void modified(MidiEvent E) {
+		mModificationCount++;
+		if(E instanceof Tempo) {
+			mTempoModificationCount++;
+		}
+	}
+	
+	// Bytes written for E when it follows prev: its delta is derived from
+	// the ticks and its status byte is dropped under running status.
+	private static int sizeAfter(MidiEvent E, MidiEvent prev) {
+		
+		long delta = prev != null ? E.getTick() - prev.getTick() : E.getTick();
+		int size = E.getSize() - VariableLengthInt.getByteCount(E.getDelta()) + VariableLengthInt.getByteCount(delta);
+		
+		if(prev != null && !E.requiresStatusByte(prev)) {
+			size--;
+		}
+		return size;
+	}
+	
+	private static MidiEvent lastAtOrBefore(TreeSet<MidiEvent> events, long tick) {
+		if(events.size() == 0 || events.first().getTick() > tick) {
+			return null;
+		}
+		return events.headSet(new TickProbe(tick + 1)).last();
+	}
+	
+	private static MidiEvent firstAfter(TreeSet<MidiEvent> events, long tick) {
+		Iterator<MidiEvent> it = events.tailSet(new TickProbe(tick + 1)).iterator();
+		return it.hasNext() ? it.next() : null;
+	}
+	
+	public boolean isClosed() {
+		return mClosed;
+	}
+	
 	public void closeTrack() {
+		if(mReadOnly) {
+			return;
+		}
 		long lastTick = 0;
 		if(mEvents.size() > 0) {
 			MidiEvent last = mEvents.last();
@@ -249,6 +820,34 @@ public class MidiTrack {
 		insertEvent(eot);
 	}
 	
+	/**
+	 * Sorts before every event at its tick, for seeking into the event set.
+	 */
+	private static class TickProbe extends MidiEvent {
+		
+		public TickProbe(long tick) {
+			super(tick, 0x0FFFFFFF);
+		}
+		
+		@Override
+		public int compareTo(MidiEvent other) {
+			if(mTick != other.getTick()) {
+				return mTick < other.getTick() ? -1 : 1;
+			}
+			return -1;
+		}
+		
+		@Override
+		public MidiEvent copy(long tick) {
+			return new TickProbe(tick);
+		}
+		
+		@Override
+		protected int getEventSize() {
+			return 0;
+		}
+	}
+	
 	public void dumpEvents() {
 		Iterator<MidiEvent> it = mEvents.iterator();
 		while(it.hasNext()) {
@@ -264,13 +863,10 @@ public class MidiTrack {
 		MidiEvent last = null;
 		while(it.hasNext()) {
 			MidiEvent E = it.next();
-			mSize += E.getSize();
 			
 			// If an event is of the same type as the previous event,
 			// no status byte is written.
-			if(last != null && !E.requiresStatusByte(last)) {
-				mSize--;
-			}
+			mSize += sizeAfter(E, last);
 			last = E;
 		}
 		
@@ -279,7 +875,7 @@ public class MidiTrack {
 	
 	public void writeToFile(OutputStream out) throws IOException {
 		
-		if(!mClosed) {
+		if(!mClosed && !mReadOnly) {
 			closeTrack();
 		}
 		
@@ -287,11 +883,22 @@ public class MidiTrack {
 			recalculateSize();
 		}
 		
+		// A snapshot of an open track cannot be closed, so its EndOfTrack is
+		// written without being added.
+		EndOfTrack eot = null;
+		int size = mSize;
+		if(!mClosed) {
+			long lastTick = mEvents.size() > 0 ? mEvents.last().getTick() + 1 : 0;
+			eot = new EndOfTrack(lastTick, mEvents.size() > 0 ? 1 : 0);
+			size += eot.getSize();
+		}
+		
 		out.write(IDENTIFIER);
-		out.write(MidiUtil.intToBytes(mSize, 4));
+		out.write(MidiUtil.intToBytes(size, 4));
 		
 		Iterator<MidiEvent> it = mEvents.iterator();
 		MidiEvent lastEvent = null;
+		long lastTick = 0;
 		
 		while(it.hasNext()) {
 			MidiEvent event = it.next();
@@ -299,9 +906,33 @@ public class MidiTrack {
 				System.out.println("Writing: " + event);
 			}
 			
-			event.writeToFile(out, event.requiresStatusByte(lastEvent));
+			writeEvent(out, event, event.getTick() - lastTick, event.requiresStatusByte(lastEvent));
 			
 			lastEvent = event;
+			lastTick = event.getTick();
+		}
+		
+		if(eot != null) {
+			eot.writeToFile(out, true);
 		}
 	}
+	
+	// Delta times are derived from the ticks when writing. An event's stored
+	// delta can be stale when the event is shared with a snapshot whose
+	// neighbours differ, in which case the event is written with the right one.
+	private static void writeEvent(OutputStream out, MidiEvent E, long delta, boolean writeType) throws IOException {
+		
+		if(E.getDelta() == delta) {
+			E.writeToFile(out, writeType);
+			return;
+		}
+		
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		E.writeToFile(buffer, writeType);
+		byte[] bytes = buffer.toByteArray();
+		
+		int skip = VariableLengthInt.getByteCount(E.getDelta());
+		out.write(new VariableLengthInt((int)delta).getBytes());
+		out.write(bytes, skip, bytes.length - skip);
+	}
 }
@@ -19,7 +19,6 @@ package com.voody.midilib.event;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
 
 public class ChannelEvent extends MidiEvent {
 
@@ -28,8 +27,6 @@ public class ChannelEvent extends MidiEvent {
 	protected int mValue1;
 	protected int mValue2;
 	
-	private static HashMap<Integer, Integer> mOrderMap;
-	
 	protected ChannelEvent(long tick, int type, int channel, int param1, int param2) {
 		this(tick, 0, type, channel, param1, param2);
 	}
@@ -83,16 +80,9 @@ public class ChannelEvent extends MidiEvent {
 		}
 		
 		ChannelEvent o = (ChannelEvent)other;
-		if(mType != o.getType()) {
-			
-			if(mOrderMap == null) {
-				buildOrderMap();
-			}
-			
-			int order1 = mOrderMap.get(mType);
-			int order2 = mOrderMap.get(o.getType());
-			
-			return order1 < order2 ? -1 : 1;
+		int order = getOrder(), otherOrder = o.getOrder();
+		if(order != otherOrder) {
+			return order < otherOrder ? -1 : 1;
 		}
 		if(mValue1 != o.mValue1) {
 			return mValue1 < o.mValue1 ? -1 : 1;
@@ -106,6 +96,11 @@ public class ChannelEvent extends MidiEvent {
 		return 0;
 	}
 	
+	@Override
+	public ChannelEvent copy(long tick) {
+		return createChannelEvent(tick, 0, mType, mChannel, mValue1, mValue2);
+	}
+	
 	@Override
 	public boolean requiresStatusByte(MidiEvent prevEvent) {
 		if(prevEvent == null) {
@@ -141,6 +136,11 @@ public class ChannelEvent extends MidiEvent {
 			val2 = in.read();
 		}
 		
+		return createChannelEvent(tick, delta, type, channel, val1, val2);
+	}
+	
+	public static ChannelEvent createChannelEvent(long tick, long delta, int type, int channel, int val1, int val2) {
+		
 		switch(type) {
 			case NOTE_OFF:
 				return new NoteOff(tick, delta, channel, val1, val2);
@@ -161,17 +161,35 @@ public class ChannelEvent extends MidiEvent {
 		}
 	}
 	
-	private static void buildOrderMap() {
-		
-		mOrderMap = new HashMap<Integer, Integer>();
-		
-		mOrderMap.put(PROGRAM_CHANGE, 0);
-		mOrderMap.put(CONTROLLER, 1);
-		mOrderMap.put(NOTE_ON, 2);
-		mOrderMap.put(NOTE_OFF, 3);
-		mOrderMap.put(NOTE_AFTERTOUCH, 4);
-		mOrderMap.put(CHANNEL_AFTERTOUCH, 5);
-		mOrderMap.put(PITCH_BEND, 6);
+	// Order of the event at the same tick by its type, with bank select
+	// ahead of the program change it applies to
+	private int getOrder() {
+		if(mType == CONTROLLER && (mValue1 == 0 || mValue1 == 32)) {
+			return -1;
+		}
+		return getOrder(mType);
+	}
+	
+	// Order of the types at the same tick
+	private static int getOrder(int type) {
+		switch(type) {
+			case PROGRAM_CHANGE:
+				return 0;
+			case CONTROLLER:
+				return 1;
+			case NOTE_ON:
+				return 2;
+			case NOTE_OFF:
+				return 3;
+			case NOTE_AFTERTOUCH:
+				return 4;
+			case CHANNEL_AFTERTOUCH:
+				return 5;
+			case PITCH_BEND:
+				return 6;
+			default:
+				return 7;
+		}
 	}
 	
 	public static final int NOTE_OFF			= 0x8;
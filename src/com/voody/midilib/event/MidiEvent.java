@@ -52,6 +52,12 @@ public abstract class MidiEvent implements Comparable<MidiEvent> {
 	
 	protected abstract int getEventSize();
 	
+	/**
+	 * A new event with the same contents at the given tick, for copying
+	 * events between tracks.
+	 */
+	public abstract MidiEvent copy(long tick);
+	
 	public int getSize() {
 		return getEventSize() + mDelta.getByteCount();
 	}
@@ -73,22 +79,30 @@ public abstract class MidiEvent implements Comparable<MidiEvent> {
 		out.write(mDelta.getBytes());
 	}
 	
-	private static int sId = -1;
-	private static int sType = -1;
-	private static int sChannel = -1;
+	// The running status of the stream being parsed, kept per thread so
+	// that files can be read in parallel
+	private static final int ID = 0, TYPE = 1, CHANNEL = 2;
+	private static final ThreadLocal<int[]> sStatus = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[] { -1, -1, -1 };
+		}
+	};
 	
 	public static final MidiEvent parseEvent(long tick, long delta, InputStream in) throws IOException {
 		
 		in.mark(1);
 		
+		int[] status = sStatus.get();
 		int id = in.read();
-		if(!verifyIdentifier(id)) {
+		if(!verifyIdentifier(id, status)) {
 			in.reset();
 		}
 		
+		int sId = status[ID];
+		int sType = status[TYPE];
 		if(sType >= 0x8 && sType <= 0xE) {
 			
-			return ChannelEvent.parseChannelEvent(tick, delta, sType, sChannel, in);
+			return ChannelEvent.parseChannelEvent(tick, delta, sType, status[CHANNEL], in);
 		}
 		else if(sId == 0xFF) {
 			
@@ -108,25 +122,25 @@ public abstract class MidiEvent implements Comparable<MidiEvent> {
 		return null;
 	}
 	
-	private static boolean verifyIdentifier(int id) {
+	private static boolean verifyIdentifier(int id, int[] status) {
 		
 		int type = id >> 4;
 		int channel = id & 0x0F;
 		
 		if(type >= 0x8 && type <= 0xE) {
-			sId = id;
-			sType = type;
-			sChannel = channel;
+			status[ID] = id;
+			status[TYPE] = type;
+			status[CHANNEL] = channel;
 		}
 		else if(id == 0xFF) {
-			sId = id;
-			sType = -1;
-			sChannel = -1;
+			status[ID] = id;
+			status[TYPE] = -1;
+			status[CHANNEL] = -1;
 		}
 		else if(type == 0xF) {
-			sId = id;
-			sType = type;
-			sChannel = -1;
+			status[ID] = id;
+			status[TYPE] = type;
+			status[CHANNEL] = -1;
 		}
 		else {
 			return false;
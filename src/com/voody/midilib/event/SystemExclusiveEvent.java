@@ -55,6 +55,11 @@ public class SystemExclusiveEvent extends MidiEvent {
 		mData = data;
 	}
 	
+	@Override
+	public SystemExclusiveEvent copy(long tick) {
+		return new SystemExclusiveEvent(mType, tick, mData.clone());
+	}
+	
 	@Override
 	public void writeToFile(OutputStream out, boolean writeType) throws IOException {
 		super.writeToFile(out, writeType);
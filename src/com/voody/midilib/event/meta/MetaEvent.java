@@ -16,6 +16,8 @@
 
 package com.voody.midilib.event.meta;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -35,8 +37,29 @@ public abstract class MetaEvent extends MidiEvent {
 		mLength = length;
 	}
 	
+	public int getType() {
+		return mType;
+	}
+	
 	protected abstract int getEventSize();
 	
+	/**
+	 * Copied by writing the event and parsing it back.
+	 */
+	@Override
+	public MetaEvent copy(long tick) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeToFile(out);
+			
+			ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+			in.skip(mDelta.getByteCount() + 1);
+			return parseMetaEvent(tick, 0, in);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
 	@Override
 	public void writeToFile(OutputStream out, boolean writeType) throws IOException {
 		writeToFile(out);
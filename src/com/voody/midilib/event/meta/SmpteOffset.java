@@ -125,14 +125,31 @@ public class SmpteOffset extends MetaEvent {
 	}
 	
 	public enum FrameRate {
-		FRAME_RATE_24		(0x00),
-		FRAME_RATE_25		(0x01),
-		FRAME_RATE_30_DROP	(0x02),
-		FRAME_RATE_30		(0x03);
+		FRAME_RATE_24		(0x00, 24, 1),
+		FRAME_RATE_25		(0x01, 25, 1),
+		FRAME_RATE_30_DROP	(0x02, 30000, 1001),
+		FRAME_RATE_30		(0x03, 30, 1);
 		
 		public final int value;
-		private FrameRate(int v) {
+		
+		// Exact frames per second as a fraction, 29.97 being 30000/1001
+		public final int rateNumerator;
+		public final int rateDenominator;
+		
+		private FrameRate(int v, int num, int den) {
 			value = v;
+			rateNumerator = num;
+			rateDenominator = den;
+		}
+		
+		/**
+		 * Frames counted per timecode second: 30 for 29.97 drop-frame.
+		 */
+		public int getFramesPerSecond() {
+			return (rateNumerator + rateDenominator - 1) / rateDenominator;
+		}
+		public boolean isDropFrame() {
+			return this == FRAME_RATE_30_DROP;
 		}
 		
 		public static FrameRate fromInt(int val) {
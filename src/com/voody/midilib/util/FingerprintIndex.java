@@ -0,0 +1,166 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * An in-memory index of fingerprints, each given an id in the order it was
+ * added. Exact duplicates are found through a hash table. Near duplicates
+ * are found with locality-sensitive hashing: the MinHash signature is cut
+ * into BANDS bands, and fingerprints agreeing on a whole band are
+ * candidates, so a query only looks at files likely to be similar rather
+ * than at the whole index.
+ *
+ * With 16 bands of 4 values, files sharing half their n-grams are found
+ * with a probability of about 0.65, and files sharing 80% almost always.
+ */
+public class FingerprintIndex {
+	
+	public static final int BANDS = 16;
+	private static final int ROWS = MidiFingerprint.SIGNATURE_SIZE / BANDS;
+	
+	private ArrayList<MidiFingerprint> mFingerprints = new ArrayList<MidiFingerprint>();
+	private HashMap<Long, int[]> mExact = new HashMap<Long, int[]>();
+	private HashMap<Long, int[]> mBands = new HashMap<Long, int[]>();
+	
+	/**
+	 * Adds a fingerprint and returns its id.
+	 */
+	public synchronized int add(MidiFingerprint fp) {
+		int id = mFingerprints.size();
+		mFingerprints.add(fp);
+		
+		put(mExact, fp.getHash(), id);
+		if(!hasSignature(fp)) {
+			return id;
+		}
+		for(int b = 0; b < BANDS; b++) {
+			put(mBands, getBandKey(fp, b), id);
+		}
+		return id;
+	}
+	
+	public synchronized MidiFingerprint get(int id) {
+		return mFingerprints.get(id);
+	}
+	
+	public synchronized int size() {
+		return mFingerprints.size();
+	}
+	
+	/**
+	 * Ids of the fingerprints with the same notes as the given one.
+	 */
+	public synchronized int[] getDuplicates(MidiFingerprint fp) {
+		
+		int[] bucket = mExact.get(fp.getHash());
+		if(bucket == null) {
+			return new int[0];
+		}
+		
+		int[] result = new int[bucket[0]];
+		int count = 0;
+		for(int i = 1; i <= bucket[0]; i++) {
+			if(mFingerprints.get(bucket[i]).isDuplicateOf(fp)) {
+				result[count++] = bucket[i];
+			}
+		}
+		return trim(result, count);
+	}
+	
+	/**
+	 * Ids of the fingerprints sharing a band with the given one and with an
+	 * estimated similarity of at least minSimilarity, in ascending order.
+	 */
+	public synchronized int[] getCandidates(MidiFingerprint fp, float minSimilarity) {
+		
+		HashSet<Integer> seen = new HashSet<Integer>();
+		int[] result = new int[16];
+		int count = 0;
+		if(!hasSignature(fp)) {
+			return new int[0];
+		}
+		
+		for(int b = 0; b < BANDS; b++) {
+			int[] bucket = mBands.get(getBandKey(fp, b));
+			if(bucket == null) {
+				continue;
+			}
+			for(int i = 1; i <= bucket[0]; i++) {
+				int id = bucket[i];
+				if(!seen.add(id)) {
+					continue;
+				}
+				if(mFingerprints.get(id).getSimilarity(fp) < minSimilarity) {
+					continue;
+				}
+				if(count == result.length) {
+					int[] grown = new int[count * 2];
+					System.arraycopy(result, 0, grown, 0, count);
+					result = grown;
+				}
+				result[count++] = id;
+			}
+		}
+		
+		result = trim(result, count);
+		Arrays.sort(result);
+		return result;
+	}
+	
+	// Files with fewer notes than an n-gram have no signature to compare
+	private static boolean hasSignature(MidiFingerprint fp) {
+		return fp.getNoteCount() >= MidiFingerprint.NGRAM;
+	}
+	
+	private static long getBandKey(MidiFingerprint fp, int band) {
+		long[] signature = fp.getSignature();
+		long h = band;
+		for(int r = 0; r < ROWS; r++) {
+			h = MidiFingerprint.mix(h ^ signature[band * ROWS + r]);
+		}
+		return h;
+	}
+	
+	// Buckets hold their size followed by their ids
+	private static void put(HashMap<Long, int[]> map, long key, int id) {
+		int[] bucket = map.get(key);
+		if(bucket == null) {
+			bucket = new int[2];
+		}
+		else if(bucket[0] + 1 == bucket.length) {
+			int[] grown = new int[bucket.length * 2];
+			System.arraycopy(bucket, 0, grown, 0, bucket.length);
+			bucket = grown;
+		}
+		bucket[++bucket[0]] = id;
+		map.put(key, bucket);
+	}
+	
+	private static int[] trim(int[] array, int count) {
+		if(count == array.length) {
+			return array;
+		}
+		int[] trimmed = new int[count];
+		System.arraycopy(array, 0, trimmed, 0, count);
+		return trimmed;
+	}
+}
@@ -0,0 +1,552 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+
+/**
+ * An on-disk inverted index for finding melodic fragments in a collection
+ * of files. The melody of a track is its highest note at each onset, drums
+ * left out. Every run of NGRAM + 1 melody notes is indexed under its pitch
+ * intervals and a rough rhythm, whether each gap between onsets is shorter,
+ * about equal to or longer than the one before, so fragments are found in
+ * any key and at any tempo or resolution.
+ *
+ * Build an index with a Builder, write it to a file, then open the file,
+ * which is memory-mapped and searched in place. The postings of each n-gram
+ * list file, track, melody note and tick, delta coded as variable-length
+ * integers. Files are numbered in the order they are added, up to 2^23
+ * files with up to 2^16 tracks and 2^24 melody notes each, as searches
+ * pack the three into a long; files over the limits are not added. The
+ * index file may not exceed 2GB.
+ */
+public class MelodyIndex {
+	
+	public static final int NGRAM = 4;
+	
+	private static final int MAGIC = 0x4D4D4958;		// "MMIX"
+	private static final int HEADER_SIZE = 8;
+	private static final int DRUM_CHANNEL = 9;
+	
+	// Limits of the fields packed into the places of a search
+	private static final int MAX_FILES = 1 << 23;
+	private static final int MAX_TRACKS = 1 << 16;
+	private static final int MAX_NOTES = 1 << 24;
+	
+	private MappedByteBuffer mBuffer;
+	private int mKeyCount;
+	private int mKeysStart;
+	private int mOffsetsStart;
+	private int mPostingsStart;
+	
+	/**
+	 * A place where a fragment was found: the tick of its first note.
+	 */
+	public static class Match {
+		
+		private int mFile;
+		private int mTrack;
+		private long mTick;
+		
+		public Match(int file, int track, long tick) {
+			mFile = file;
+			mTrack = track;
+			mTick = tick;
+		}
+		
+		public int getFile() {
+			return mFile;
+		}
+		public int getTrack() {
+			return mTrack;
+		}
+		public long getTick() {
+			return mTick;
+		}
+		
+		@Override
+		public String toString() {
+			return "file " + mFile + ", track " + mTrack + ", tick " + mTick;
+		}
+	}
+	
+	/**
+	 * Collects the n-grams of files in memory, as delta coded postings, and
+	 * writes them out as an index.
+	 */
+	public static class Builder {
+		
+		private int mFileCount;
+		private HashMap<Long, Postings> mPostings = new HashMap<Long, Postings>();
+		
+		/**
+		 * Adds the melodies of the file's tracks and returns the file's number,
+		 * or -1 if the file or the index is over the limits.
+		 */
+		public synchronized int add(MidiFile file) {
+			return append(new Grams(file));
+		}
+		
+		/**
+		 * Reads and adds the files, extracting their melodies in parallel.
+		 * Returns the number of each file, or -1 for files that could not be
+		 * read or are over the limits.
+		 */
+		public int[] addFiles(final List<File> files) {
+			
+			int[] ids = new int[files.size()];
+			int batch = Parallel.getThreadCount() * 16;
+			
+			for(int from = 0; from < files.size(); from += batch) {
+				
+				final int start = from;
+				final Grams[] grams = new Grams[Math.min(batch, files.size() - from)];
+				Parallel.forEach(grams.length, new Parallel.Task() {
+					public void run(int index) {
+						File f = files.get(start + index);
+						try {
+							grams[index] = new Grams(new MidiFile(f));
+						} catch(Exception e) {
+							System.err.println("Error: Cannot index " + f + ": " + e);
+						}
+					}
+				});
+				
+				// Appended in order so every posting list stays sorted
+				synchronized(this) {
+					for(int i = 0; i < grams.length; i++) {
+						ids[start + i] = grams[i] != null ? append(grams[i]) : -1;
+					}
+				}
+			}
+			return ids;
+		}
+		
+		public synchronized int getFileCount() {
+			return mFileCount;
+		}
+		
+		public synchronized void writeToFile(File outFile) throws IOException {
+			
+			long[] keys = new long[mPostings.size()];
+			int k = 0;
+			for(Long key : mPostings.keySet()) {
+				keys[k++] = key;
+			}
+			Arrays.sort(keys);
+			
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(keys.length);
+				for(long key : keys) {
+					out.writeLong(key);
+				}
+				
+				// Offsets of each list in the postings, and the end of the last
+				long offset = 0;
+				for(long key : keys) {
+					out.writeLong(offset);
+					offset += mPostings.get(key).mLength;
+				}
+				out.writeLong(offset);
+				
+				for(long key : keys) {
+					Postings p = mPostings.get(key);
+					out.write(p.mBytes, 0, p.mLength);
+				}
+			} finally {
+				out.close();
+			}
+		}
+		
+		private int append(Grams grams) {
+			
+			if(mFileCount >= MAX_FILES) {
+				System.err.println("Error: Cannot index more than " + MAX_FILES + " files.");
+				return -1;
+			}
+			if(grams.mTrackCount > MAX_TRACKS || grams.mMaxNotes > MAX_NOTES) {
+				System.err.println("Error: Cannot index a file with more than " + MAX_TRACKS + " tracks or " + MAX_NOTES + " melody notes in a track.");
+				return -1;
+			}
+			
+			int file = mFileCount++;
+			for(int i = 0; i < grams.mCount; i++) {
+				Postings p = mPostings.get(grams.mKeys[i]);
+				if(p == null) {
+					p = new Postings();
+					mPostings.put(grams.mKeys[i], p);
+				}
+				p.add(file, grams.mTracks[i], grams.mNotes[i], grams.mTicks[i]);
+			}
+			return file;
+		}
+	}
+	
+	/**
+	 * Opens an index written by a Builder.
+	 */
+	public MelodyIndex(File file) throws IOException {
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Index larger than 2GB");
+			}
+			mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+		
+		if(mBuffer.limit() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a melody index");
+		}
+		mKeyCount = mBuffer.getInt(4);
+		mKeysStart = HEADER_SIZE;
+		mOffsetsStart = mKeysStart + 8 * mKeyCount;
+		mPostingsStart = mOffsetsStart + 8 * (mKeyCount + 1);
+	}
+	
+	/**
+	 * Number of distinct n-grams in the index.
+	 */
+	public int getKeyCount() {
+		return mKeyCount;
+	}
+	
+	/**
+	 * Places where the melody of the fragment occurs.
+	 */
+	public List<Match> find(MidiTrack fragment) {
+		Melody melody = new Melody(new NoteIndex(fragment));
+		return find(melody.mPitches, melody.mOnsets, melody.mCount);
+	}
+	
+	/**
+	 * Places where the melody with the given pitches and onsets occurs. The
+	 * onsets may be in any unit; only their ratios are used. At least
+	 * NGRAM + 1 notes are needed.
+	 */
+	public List<Match> find(int[] pitches, long[] onsets) {
+		return find(pitches, onsets, Math.min(pitches.length, onsets.length));
+	}
+	
+	private List<Match> find(int[] pitches, long[] onsets, int count) {
+		
+		ArrayList<Match> matches = new ArrayList<Match>();
+		int grams = count - NGRAM;
+		if(grams <= 0) {
+			return matches;
+		}
+		
+		// Each n-gram's postings, as places of the fragment's first note
+		long[][] places = new long[grams][];
+		long[] ticks = null;
+		int rarest = 0;
+		for(int j = 0; j < grams; j++) {
+			int list = findKey(getKey(pitches, onsets, j));
+			if(list < 0) {
+				return matches;
+			}
+			long[][] decoded = decode(list, j);
+			places[j] = decoded[0];
+			if(j == 0) {
+				ticks = decoded[1];
+			}
+			if(places[j].length < places[rarest].length) {
+				rarest = j;
+			}
+		}
+		
+		for(long place : places[rarest]) {
+			boolean found = true;
+			for(int j = 0; j < grams && found; j++) {
+				found = j == rarest || Arrays.binarySearch(places[j], place) >= 0;
+			}
+			if(found) {
+				int i = Arrays.binarySearch(places[0], place);
+				matches.add(new Match((int)(place >>> 40), (int)(place >>> 24) & 0xFFFF, ticks[i]));
+			}
+		}
+		return matches;
+	}
+	
+	// Index of the key in the sorted key table, or -1
+	private int findKey(long key) {
+		int lo = 0, hi = mKeyCount - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long k = mBuffer.getLong(mKeysStart + 8 * mid);
+			if(k < key) {
+				lo = mid + 1;
+			} else if(k > key) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+	
+	// The places of a posting list, packed as file << 40 | track << 24 |
+	// note with the note moved back by shift, and their ticks
+	private long[][] decode(int list, int shift) {
+		
+		int pos = mPostingsStart + (int)mBuffer.getLong(mOffsetsStart + 8 * list);
+		int end = mPostingsStart + (int)mBuffer.getLong(mOffsetsStart + 8 * (list + 1));
+		
+		long[] places = new long[16];
+		long[] ticks = new long[16];
+		int count = 0;
+		long file = 0, track = 0, note = 0, tick = 0;
+		long[] value = new long[1];
+		
+		while(pos < end) {
+			pos = readVarLong(pos, value);
+			if(value[0] > 0) {
+				file += value[0];
+				pos = readVarLong(pos, value);
+				track = value[0];
+				pos = readVarLong(pos, value);
+				note = value[0];
+				pos = readVarLong(pos, value);
+				tick = value[0];
+			} else {
+				pos = readVarLong(pos, value);
+				if(value[0] > 0) {
+					track += value[0];
+					pos = readVarLong(pos, value);
+					note = value[0];
+					pos = readVarLong(pos, value);
+					tick = value[0];
+				} else {
+					pos = readVarLong(pos, value);
+					note += value[0];
+					pos = readVarLong(pos, value);
+					tick += value[0];
+				}
+			}
+			
+			if(note < shift) {
+				continue;
+			}
+			if(count == places.length) {
+				places = grow(places);
+				ticks = grow(ticks);
+			}
+			places[count] = (file - 1) << 40 | track << 24 | (note - shift);
+			ticks[count] = tick;
+			count++;
+		}
+		
+		long[][] result = { new long[count], new long[count] };
+		System.arraycopy(places, 0, result[0], 0, count);
+		System.arraycopy(ticks, 0, result[1], 0, count);
+		return result;
+	}
+	
+	private int readVarLong(int pos, long[] value) {
+		long v = 0;
+		for(int shift = 0; ; shift += 7) {
+			int b = mBuffer.get(pos++);
+			v |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				break;
+			}
+		}
+		value[0] = v;
+		return pos;
+	}
+	
+	private static long[] grow(long[] array) {
+		long[] grown = new long[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+	
+	// The n-gram starting at melody note i: NGRAM intervals of 7 bits, then
+	// the rhythm of the NGRAM - 1 later gaps at 2 bits each
+	private static long getKey(int[] pitches, long[] onsets, int i) {
+		long key = 0;
+		for(int j = 0; j < NGRAM; j++) {
+			int interval = Math.max(-64, Math.min(63, pitches[i + j + 1] - pitches[i + j]));
+			key = key << 7 | (interval + 64);
+		}
+		for(int j = 1; j < NGRAM; j++) {
+			long prev = onsets[i + j] - onsets[i + j - 1];
+			long gap = onsets[i + j + 1] - onsets[i + j];
+			int rhythm = gap * 5 < prev * 4 ? 0 : (gap * 4 > prev * 5 ? 2 : 1);
+			key = key << 2 | rhythm;
+		}
+		return key;
+	}
+	
+	/**
+	 * The melody of a track: its highest pitch at each onset, in time
+	 * order, leaving out the drum channel.
+	 */
+	private static class Melody {
+		
+		private int mCount;
+		private int[] mPitches;
+		private long[] mOnsets;
+		
+		public Melody(NoteIndex notes) {
+			
+			int n = notes.getNoteCount();
+			int[] order = new int[n];
+			long[] starts = new long[n];
+			for(int i = 0; i < n; i++) {
+				order[i] = i;
+				starts[i] = notes.getStart(i);
+			}
+			
+			// Ids are ordered by pitch, so a stable sort by start leaves the
+			// highest note of each onset last
+			NoteIndex.sortByKey(order, 0, n, starts, new int[n]);
+			
+			mPitches = new int[n];
+			mOnsets = new long[n];
+			for(int i = 0; i < n; i++) {
+				int note = order[i];
+				if(notes.getChannel(note) == DRUM_CHANNEL) {
+					continue;
+				}
+				if(mCount > 0 && mOnsets[mCount - 1] == starts[note]) {
+					mPitches[mCount - 1] = notes.getPitch(note);
+					continue;
+				}
+				mPitches[mCount] = notes.getPitch(note);
+				mOnsets[mCount] = starts[note];
+				mCount++;
+			}
+		}
+	}
+	
+	/**
+	 * The n-grams of a file, track by track, in the order they are posted.
+	 */
+	private static class Grams {
+		
+		private int mCount;
+		private long[] mKeys = new long[64];
+		private int[] mTracks = new int[64];
+		private int[] mNotes = new int[64];
+		private long[] mTicks = new long[64];
+		
+		private int mTrackCount;
+		private int mMaxNotes;
+		
+		public Grams(MidiFile file) {
+			ArrayList<MidiTrack> tracks = file.getTracks();
+			mTrackCount = tracks.size();
+			for(int t = 0; t < tracks.size(); t++) {
+				Melody melody = new Melody(new NoteIndex(tracks.get(t)));
+				mMaxNotes = Math.max(mMaxNotes, melody.mCount);
+				for(int i = 0; i + NGRAM < melody.mCount; i++) {
+					add(getKey(melody.mPitches, melody.mOnsets, i), t, i, melody.mOnsets[i]);
+				}
+			}
+		}
+		
+		private void add(long key, int track, int note, long tick) {
+			if(mCount == mKeys.length) {
+				mKeys = grow(mKeys);
+				mTicks = grow(mTicks);
+				int[] t = new int[mCount * 2];
+				System.arraycopy(mTracks, 0, t, 0, mCount);
+				mTracks = t;
+				int[] n = new int[mCount * 2];
+				System.arraycopy(mNotes, 0, n, 0, mCount);
+				mNotes = n;
+			}
+			mKeys[mCount] = key;
+			mTracks[mCount] = track;
+			mNotes[mCount] = note;
+			mTicks[mCount] = tick;
+			mCount++;
+		}
+	}
+	
+	/**
+	 * A posting list being built. Each posting starts with the gap to its
+	 * file, counting files from 1. A posting in a new file then holds its
+	 * track, note and tick; one in the same file holds the gap to its track,
+	 * then either the note and tick of a new track, or the gaps to the note
+	 * and tick in the same track.
+	 */
+	private static class Postings {
+		
+		private byte[] mBytes = new byte[8];
+		private int mLength;
+		private long mFile, mTrack, mNote, mTick;
+		
+		public void add(int file, int track, int note, long tick) {
+			if(file + 1 != mFile) {
+				write(file + 1 - mFile);
+				write(track);
+				write(note);
+				write(tick);
+			}
+			else if(track != mTrack) {
+				write(0);
+				write(track - mTrack);
+				write(note);
+				write(tick);
+			}
+			else {
+				write(0);
+				write(0);
+				write(note - mNote);
+				write(tick - mTick);
+			}
+			mFile = file + 1;
+			mTrack = track;
+			mNote = note;
+			mTick = tick;
+		}
+		
+		private void write(long value) {
+			if(mLength + 10 > mBytes.length) {
+				byte[] grown = new byte[mBytes.length * 2];
+				System.arraycopy(mBytes, 0, grown, 0, mLength);
+				mBytes = grown;
+			}
+			while((value & ~0x7FL) != 0) {
+				mBytes[mLength++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			mBytes[mLength++] = (byte)value;
+		}
+	}
+}
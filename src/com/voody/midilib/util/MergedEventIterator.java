@@ -0,0 +1,144 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.MidiEvent;
+
+/**
+ * Iterates the events of several tracks as one sequence ordered by tick,
+ * merging the tracks with a heap in O(log tracks) per event. Events at the
+ * same tick come in track order, and keep their order within a track.
+ */
+public class MergedEventIterator implements Iterator<MidiEvent> {
+	
+	private PriorityQueue<Cursor> mHeap;
+	private Cursor[] mCursors;
+	private int mTrackIndex = -1;
+	
+	public MergedEventIterator(MidiFile file) {
+		this(file.getTracks());
+	}
+	
+	public MergedEventIterator(List<MidiTrack> tracks) {
+		this(tracks, 0, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Iterates only the events from fromTick up to, but not including,
+	 * toTick.
+	 */
+	public MergedEventIterator(List<MidiTrack> tracks, long fromTick, long toTick) {
+		mHeap = new PriorityQueue<Cursor>(Math.max(1, tracks.size()));
+		mCursors = new Cursor[tracks.size()];
+		for(int i = 0; i < tracks.size(); i++) {
+			MidiTrack T = tracks.get(i);
+			Iterator<MidiEvent> it = fromTick <= 0 && toTick == Long.MAX_VALUE ? T.getEvents().iterator() : T.getEvents(fromTick, toTick).iterator();
+			mCursors[i] = new Cursor(it, i);
+			if(mCursors[i].advance()) {
+				mHeap.add(mCursors[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Continues the given track from it in place of the rest of its events,
+	 * such as after an edit to a concurrent track.
+	 */
+	public void setIterator(int track, Iterator<MidiEvent> it) {
+		Cursor c = mCursors[track];
+		if(c.mHead != null) {
+			mHeap.remove(c);
+		}
+		c.mIterator = it;
+		if(c.advance()) {
+			mHeap.add(c);
+		}
+	}
+	
+	public boolean hasNext() {
+		return mHeap.size() > 0;
+	}
+	
+	public MidiEvent next() {
+		Cursor c = mHeap.poll();
+		if(c == null) {
+			throw new NoSuchElementException();
+		}
+		
+		MidiEvent E = c.mHead;
+		mTrackIndex = c.mTrack;
+		if(c.advance()) {
+			mHeap.add(c);
+		}
+		return E;
+	}
+	
+	/**
+	 * Index of the track of the event last returned by next().
+	 */
+	public int getTrackIndex() {
+		return mTrackIndex;
+	}
+	
+	/**
+	 * Tick of the event next() will return, or -1 at the end.
+	 */
+	public long peekTick() {
+		Cursor c = mHeap.peek();
+		return c != null ? c.mHead.getTick() : -1;
+	}
+	
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	private static class Cursor implements Comparable<Cursor> {
+		
+		private Iterator<MidiEvent> mIterator;
+		private MidiEvent mHead;
+		private int mTrack;
+		
+		public Cursor(Iterator<MidiEvent> it, int track) {
+			mIterator = it;
+			mTrack = track;
+		}
+		
+		public boolean advance() {
+			if(!mIterator.hasNext()) {
+				mHead = null;
+				return false;
+			}
+			mHead = mIterator.next();
+			return true;
+		}
+		
+		public int compareTo(Cursor other) {
+			long t1 = mHead.getTick(), t2 = other.mHead.getTick();
+			if(t1 != t2) {
+				return t1 < t2 ? -1 : 1;
+			}
+			return mTrack < other.mTrack ? -1 : (mTrack == other.mTrack ? 0 : 1);
+		}
+	}
+}
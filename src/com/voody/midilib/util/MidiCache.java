@@ -0,0 +1,288 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.ChannelEvent;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.ProgramChange;
+import com.voody.midilib.event.meta.MetaEvent;
+
+/**
+ * Memoizes values derived from a MidiFile and its tracks. Each value is
+ * stored with the modification count it was computed from and is only
+ * recomputed once that count changes, so reading an unchanged value is a
+ * lookup. Values of a track depend on that track alone; file values built
+ * from them recompute only the tracks that changed.
+ *
+ * Values returned are shared and must not be modified. Obtain the cache of
+ * a file with MidiFile.getCache().
+ */
+public class MidiCache {
+	
+	/**
+	 * A value computed from a single track. By default it is recomputed
+	 * after any change to the track.
+	 */
+	public static abstract class TrackValue<T> {
+		
+		public abstract T compute(MidiTrack track);
+		
+		public long getStamp(MidiTrack track) {
+			return track.getModificationCount();
+		}
+	}
+	
+	/**
+	 * A value computed from the whole file. By default it is recomputed
+	 * after any change to the file or one of its tracks.
+	 */
+	public static abstract class FileValue<T> {
+		
+		public abstract T compute(MidiFile file, MidiCache cache);
+		
+		public long getStamp(MidiFile file) {
+			return file.getModificationCount();
+		}
+	}
+	
+	/** Index into the event histograms: 16 + meta type for meta events */
+	public static final int HISTOGRAM_SIZE = 16 + 128;
+	
+	public static int getHistogramSlot(MidiEvent E) {
+		if(E instanceof ChannelEvent) {
+			return ((ChannelEvent)E).getType() & 0x0F;
+		}
+		if(E instanceof MetaEvent) {
+			return 16 + (((MetaEvent)E).getType() & 0x7F);
+		}
+		return 0x0F;
+	}
+	
+	public static final TrackValue<Long> TRACK_LENGTH = new TrackValue<Long>() {
+		public Long compute(MidiTrack track) {
+			return track.getLengthInTicks();
+		}
+	};
+	
+	/** Bit c is set if channel c is used */
+	public static final TrackValue<Integer> TRACK_CHANNELS = new TrackValue<Integer>() {
+		public Integer compute(MidiTrack track) {
+			int mask = 0;
+			for(MidiEvent E : track.getEvents()) {
+				if(E instanceof ChannelEvent) {
+					mask |= 1 << ((ChannelEvent)E).getChannel();
+				}
+			}
+			return mask;
+		}
+	};
+	
+	/** Bit (program & 63) of word (channel * 2 + program / 64) is set if the program is selected on the channel */
+	public static final TrackValue<long[]> TRACK_PROGRAMS = new TrackValue<long[]>() {
+		public long[] compute(MidiTrack track) {
+			long[] programs = new long[32];
+			for(ProgramChange pc : track.getEvents(ProgramChange.class)) {
+				int program = pc.getProgramNumber() & 0x7F;
+				programs[pc.getChannel() * 2 + (program >> 6)] |= 1L << (program & 63);
+			}
+			return programs;
+		}
+	};
+	
+	public static final TrackValue<int[]> TRACK_HISTOGRAM = new TrackValue<int[]>() {
+		public int[] compute(MidiTrack track) {
+			int[] counts = new int[HISTOGRAM_SIZE];
+			for(MidiEvent E : track.getEvents()) {
+				counts[getHistogramSlot(E)]++;
+			}
+			return counts;
+		}
+	};
+	
+	public static final TrackValue<NoteIndex> TRACK_NOTES = new TrackValue<NoteIndex>() {
+		public NoteIndex compute(MidiTrack track) {
+			return new NoteIndex(track);
+		}
+	};
+	
+	public static final FileValue<Long> LENGTH = new FileValue<Long>() {
+		public Long compute(MidiFile file, MidiCache cache) {
+			long length = 0;
+			for(MidiTrack T : file.getTracks()) {
+				length = Math.max(length, cache.get(T, TRACK_LENGTH));
+			}
+			return length;
+		}
+	};
+	
+	public static final FileValue<TempoMap> TEMPO_MAP = new FileValue<TempoMap>() {
+		public TempoMap compute(MidiFile file, MidiCache cache) {
+			return new TempoMap(file);
+		}
+		public long getStamp(MidiFile file) {
+			return file.getTempoModificationCount();
+		}
+	};
+	
+	public static final FileValue<Long> LENGTH_IN_MS = new FileValue<Long>() {
+		public Long compute(MidiFile file, MidiCache cache) {
+			return cache.get(TEMPO_MAP).tickToMs(cache.get(LENGTH));
+		}
+	};
+	
+	public static final FileValue<Integer> CHANNELS = new FileValue<Integer>() {
+		public Integer compute(MidiFile file, MidiCache cache) {
+			int mask = 0;
+			for(MidiTrack T : file.getTracks()) {
+				mask |= cache.get(T, TRACK_CHANNELS);
+			}
+			return mask;
+		}
+	};
+	
+	public static final FileValue<long[]> PROGRAMS = new FileValue<long[]>() {
+		public long[] compute(MidiFile file, MidiCache cache) {
+			long[] programs = new long[32];
+			for(MidiTrack T : file.getTracks()) {
+				long[] used = cache.get(T, TRACK_PROGRAMS);
+				for(int i = 0; i < programs.length; i++) {
+					programs[i] |= used[i];
+				}
+			}
+			return programs;
+		}
+	};
+	
+	public static final FileValue<int[]> HISTOGRAM = new FileValue<int[]>() {
+		public int[] compute(MidiFile file, MidiCache cache) {
+			int[] counts = new int[HISTOGRAM_SIZE];
+			for(MidiTrack T : file.getTracks()) {
+				int[] track = cache.get(T, TRACK_HISTOGRAM);
+				for(int i = 0; i < counts.length; i++) {
+					counts[i] += track[i];
+				}
+			}
+			return counts;
+		}
+	};
+	
+	public static final FileValue<NoteIndex> NOTES = new FileValue<NoteIndex>() {
+		public NoteIndex compute(MidiFile file, MidiCache cache) {
+			return new NoteIndex(file);
+		}
+	};
+	
+	private static class Entry {
+		long stamp;
+		Object value;
+	}
+	
+	private MidiFile mFile;
+	private HashMap<FileValue<?>, Entry> mFileValues;
+	private WeakHashMap<MidiTrack, HashMap<TrackValue<?>, Entry>> mTrackValues;
+	
+	public MidiCache(MidiFile file) {
+		mFile = file;
+		mFileValues = new HashMap<FileValue<?>, Entry>();
+		mTrackValues = new WeakHashMap<MidiTrack, HashMap<TrackValue<?>, Entry>>();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public synchronized <T> T get(MidiTrack track, TrackValue<T> value) {
+		
+		HashMap<TrackValue<?>, Entry> values = mTrackValues.get(track);
+		if(values == null) {
+			values = new HashMap<TrackValue<?>, Entry>();
+			mTrackValues.put(track, values);
+		}
+		
+		long stamp = value.getStamp(track);
+		Entry e = values.get(value);
+		if(e == null) {
+			e = new Entry();
+			values.put(value, e);
+		} else if(e.stamp == stamp) {
+			return (T)e.value;
+		}
+		
+		e.value = value.compute(track);
+		e.stamp = stamp;
+		return (T)e.value;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public synchronized <T> T get(FileValue<T> value) {
+		
+		long stamp = value.getStamp(mFile);
+		Entry e = mFileValues.get(value);
+		if(e == null) {
+			e = new Entry();
+			mFileValues.put(value, e);
+		} else if(e.stamp == stamp) {
+			return (T)e.value;
+		}
+		
+		e.value = value.compute(mFile, this);
+		e.stamp = stamp;
+		return (T)e.value;
+	}
+	
+	/**
+	 * Drops every cached value.
+	 */
+	public synchronized void clear() {
+		mFileValues.clear();
+		mTrackValues.clear();
+	}
+	
+	public long getLengthInTicks() {
+		return get(LENGTH);
+	}
+	
+	public long getLengthInMs() {
+		return get(LENGTH_IN_MS);
+	}
+	
+	public TempoMap getTempoMap() {
+		return get(TEMPO_MAP);
+	}
+	
+	public int getChannelUsage() {
+		return get(CHANNELS);
+	}
+	
+	public boolean isProgramUsed(int channel, int program) {
+		return (get(PROGRAMS)[channel * 2 + (program >> 6)] & (1L << (program & 63))) != 0;
+	}
+	
+	public int[] getEventHistogram() {
+		return get(HISTOGRAM);
+	}
+	
+	public NoteIndex getNoteIndex() {
+		return get(NOTES);
+	}
+	
+	public NoteIndex getNoteIndex(MidiTrack track) {
+		return get(track, TRACK_NOTES);
+	}
+}
@@ -0,0 +1,410 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.ChannelEvent;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.NoteAftertouch;
+import com.voody.midilib.event.NoteOff;
+import com.voody.midilib.event.NoteOn;
+import com.voody.midilib.event.meta.EndOfTrack;
+
+/**
+ * Writes files in as few bytes as possible by making the most of running
+ * status, where a channel event with the same type and channel as the one
+ * before it is written without a status byte. The tracks are not changed.
+ *
+ * Events at the same tick are reordered so that events sharing a status
+ * follow each other, but only where the order cannot be heard: events on
+ * different channels, and note events of different pitches on one channel,
+ * may swap. Notes of the same pitch, other channel events within their
+ * channel, and meta and SysEx events keep their order. Note offs may also
+ * be written as velocity 0 note ons, which lose their release velocity but
+ * share the status of the note ons around them.
+ */
+public class MidiCompactor {
+	
+	private boolean mReorder = true;
+	private boolean mNoteOffsAsNoteOns;
+	
+	/**
+	 * Whether events at the same tick may be reordered. On by default.
+	 */
+	public void setReorder(boolean reorder) {
+		mReorder = reorder;
+	}
+	
+	/**
+	 * Whether NoteOff events are written as velocity 0 NoteOn events. Off by
+	 * default.
+	 */
+	public void setNoteOffsAsNoteOns(boolean convert) {
+		mNoteOffsAsNoteOns = convert;
+	}
+	
+	/**
+	 * Size in bytes of the file this compactor would write.
+	 */
+	public long getSize(MidiFile file) {
+		long size = MidiFile.HEADER_SIZE;
+		for(MidiTrack T : file.getTracks()) {
+			size += MidiTrack.IDENTIFIER.length + 4 + getSize(T);
+		}
+		return size;
+	}
+	
+	/**
+	 * Size in bytes of the track data this compactor would write, without
+	 * the chunk header.
+	 */
+	public int getSize(MidiTrack track) {
+		try {
+			return write(order(track), null);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Bytes saved over MidiFile.writeToFile().
+	 */
+	public long getBytesSaved(MidiFile file) {
+		return file.getSize() - getSize(file);
+	}
+	
+	/**
+	 * Writes the file compacted and returns the bytes saved over
+	 * MidiFile.writeToFile(). The tracks are encoded in parallel.
+	 */
+	public long writeToFile(MidiFile file, File outFile) throws FileNotFoundException, IOException {
+		
+		FileOutputStream fout = new FileOutputStream(outFile);
+		try {
+			return writeToFile(file, fout);
+		} finally {
+			fout.close();
+		}
+	}
+	
+	public long writeToFile(MidiFile file, OutputStream out) throws IOException {
+		
+		final ArrayList<MidiTrack> tracks = file.getTracks();
+		final byte[][] chunks = new byte[tracks.size()][];
+		
+		Parallel.forEach(tracks.size(), new Parallel.Task() {
+			public void run(int index) {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				try {
+					write(order(tracks.get(index)), buffer);
+				} catch(IOException e) {
+					throw new IllegalStateException(e);
+				}
+				chunks[index] = buffer.toByteArray();
+			}
+		});
+		
+		out.write(MidiFile.IDENTIFIER);
+		out.write(MidiUtil.intToBytes(6, 4));
+		out.write(MidiUtil.intToBytes(file.getType(), 2));
+		out.write(MidiUtil.intToBytes(tracks.size(), 2));
+		out.write(MidiUtil.intToBytes(file.getResolution(), 2));
+		
+		long size = MidiFile.HEADER_SIZE;
+		for(byte[] chunk : chunks) {
+			out.write(MidiTrack.IDENTIFIER);
+			out.write(MidiUtil.intToBytes(chunk.length, 4));
+			out.write(chunk);
+			size += MidiTrack.IDENTIFIER.length + 4 + chunk.length;
+		}
+		out.flush();
+		
+		return file.getSize() - size;
+	}
+	
+	// The events of the track in the order they are written, ending with an
+	// EndOfTrack as MidiTrack.writeToFile() would add one
+	private MidiEvent[] order(MidiTrack track) {
+		
+		MidiEvent[] events = track.getEvents().toArray(new MidiEvent[track.getEventCount() + 1]);
+		int n = track.getEventCount();
+		if(!track.isClosed()) {
+			events[n] = new EndOfTrack(n > 0 ? events[n - 1].getTick() + 1 : 0, 0);
+			n++;
+		}
+		
+		MidiEvent[] ordered = new MidiEvent[n];
+		if(!mReorder) {
+			System.arraycopy(events, 0, ordered, 0, n);
+			return ordered;
+		}
+		
+		Grouper grouper = new Grouper(ordered);
+		int start = 0;
+		while(start < n) {
+			
+			// Runs of channel events at one tick, between meta and SysEx events
+			int end = start;
+			while(end < n && events[end] instanceof ChannelEvent && events[end].getTick() == events[start].getTick()) {
+				end++;
+			}
+			
+			// The first event at a tick keeps its place, since it alone has a
+			// delta and identical events are told apart by their deltas when
+			// the file is read back
+			if(end == start || start == 0 || events[start - 1].getTick() != events[start].getTick()) {
+				grouper.emit(events[start]);
+				start++;
+				continue;
+			}
+			grouper.group(events, start, end);
+			start = end;
+		}
+		return ordered;
+	}
+	
+	private int getStatus(MidiEvent E) {
+		if(!(E instanceof ChannelEvent)) {
+			return -1;
+		}
+		ChannelEvent ce = (ChannelEvent)E;
+		int type = ce.getType();
+		if(type == ChannelEvent.NOTE_OFF && mNoteOffsAsNoteOns) {
+			type = ChannelEvent.NOTE_ON;
+		}
+		return (type << 4) | ce.getChannel();
+	}
+	
+	// Pitch of a note event, or -1 for channel events that must keep their
+	// place among the events of their channel
+	private static int getPitch(MidiEvent E) {
+		if(E instanceof NoteOn) {
+			return ((NoteOn)E).getNoteValue() & 0x7F;
+		}
+		if(E instanceof NoteOff) {
+			return ((NoteOff)E).getNoteValue() & 0x7F;
+		}
+		if(E instanceof NoteAftertouch) {
+			return ((NoteAftertouch)E).getNoteValue() & 0x7F;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Fills the output order one run of same-tick channel events at a time,
+	 * remembering the status last written.
+	 */
+	private class Grouper {
+		
+		private MidiEvent[] mOut;
+		private int mCount;
+		private int mRunning = -1;
+		
+		private int[] mStatus = new int[16];
+		private int[] mPitch = new int[16];
+		private int[] mPrevSamePitch = new int[16];
+		private boolean[] mDone = new boolean[16];
+		private int[] mLastOfPitch = new int[128];
+		
+		public Grouper(MidiEvent[] out) {
+			mOut = out;
+		}
+		
+		public void emit(MidiEvent E) {
+			mOut[mCount++] = E;
+			mRunning = getStatus(E);
+		}
+		
+		public void group(MidiEvent[] events, int start, int end) {
+			
+			int size = end - start;
+			if(mStatus.length < size) {
+				mStatus = new int[size];
+				mPitch = new int[size];
+				mPrevSamePitch = new int[size];
+				mDone = new boolean[size];
+			}
+			
+			int channels = 0;
+			for(int i = 0; i < size; i++) {
+				MidiEvent E = events[start + i];
+				mStatus[i] = getStatus(E);
+				mPitch[i] = getPitch(E);
+				mDone[i] = false;
+				channels |= 1 << (mStatus[i] & 0x0F);
+			}
+			
+			// The channel of the running status goes first so it carries over
+			if(mRunning >= 0 && (channels & (1 << (mRunning & 0x0F))) != 0) {
+				groupChannel(events, start, size, mRunning & 0x0F);
+				channels &= ~(1 << (mRunning & 0x0F));
+			}
+			for(int i = 0; i < size; i++) {
+				int channel = mStatus[i] & 0x0F;
+				if((channels & (1 << channel)) != 0) {
+					groupChannel(events, start, size, channel);
+					channels &= ~(1 << channel);
+				}
+			}
+		}
+		
+		// Emits the events of one channel. Note events between two other
+		// events of the channel form a block whose events may move as long
+		// as notes of the same pitch keep their order.
+		private void groupChannel(MidiEvent[] events, int start, int size, int channel) {
+			
+			int i = 0;
+			while(i < size) {
+				
+				if((mStatus[i] & 0x0F) != channel) {
+					i++;
+					continue;
+				}
+				if(mPitch[i] < 0) {
+					mDone[i] = true;
+					emit(events[start + i]);
+					i++;
+					continue;
+				}
+				
+				int blockEnd = i;
+				for(int p = 0; p < 128; p++) {
+					mLastOfPitch[p] = -1;
+				}
+				int remaining = 0;
+				while(blockEnd < size && ((mStatus[blockEnd] & 0x0F) != channel || mPitch[blockEnd] >= 0)) {
+					if((mStatus[blockEnd] & 0x0F) == channel) {
+						mPrevSamePitch[blockEnd] = mLastOfPitch[mPitch[blockEnd]];
+						mLastOfPitch[mPitch[blockEnd]] = blockEnd;
+						remaining++;
+					}
+					blockEnd++;
+				}
+				
+				while(remaining > 0) {
+					int first = -1;
+					int pick = -1;
+					for(int j = i; j < blockEnd; j++) {
+						if(mDone[j] || (mStatus[j] & 0x0F) != channel) {
+							continue;
+						}
+						if(mPrevSamePitch[j] >= 0 && !mDone[mPrevSamePitch[j]]) {
+							continue;
+						}
+						if(mStatus[j] == mRunning) {
+							pick = j;
+							break;
+						}
+						if(first < 0) {
+							first = j;
+						}
+					}
+					if(pick < 0) {
+						pick = first;
+					}
+					mDone[pick] = true;
+					emit(events[start + pick]);
+					remaining--;
+				}
+				i = blockEnd;
+			}
+		}
+	}
+	
+	// Writes the events in the given order, or only counts the bytes when
+	// out is null, and returns the number of bytes
+	private int write(MidiEvent[] events, OutputStream out) throws IOException {
+		
+		int size = 0;
+		int running = -1;
+		long lastTick = 0;
+		Buffer buffer = out != null ? new Buffer() : null;
+		
+		for(MidiEvent E : events) {
+			
+			long delta = E.getTick() - lastTick;
+			lastTick = E.getTick();
+			size += writeVarInt(out, delta);
+			
+			int status = getStatus(E);
+			int skip = VariableLengthInt.getByteCount(E.getDelta());
+			
+			if(status < 0) {
+				// Meta and SysEx events always carry their status and cancel
+				// running status
+				running = -1;
+				size += E.getSize() - skip;
+				if(out != null) {
+					buffer.reset();
+					E.writeToFile(buffer, true);
+					buffer.writeFrom(skip, out);
+				}
+				continue;
+			}
+			
+			if(status != running) {
+				size++;
+				if(out != null) {
+					out.write(status);
+				}
+				running = status;
+			}
+			
+			// Data bytes, after the delta and the status byte
+			size += E.getSize() - skip - 1;
+			if(out == null) {
+				continue;
+			}
+			if(E instanceof NoteOff && mNoteOffsAsNoteOns) {
+				out.write(((NoteOff)E).getNoteValue() & 0x7F);
+				out.write(0);
+			} else {
+				buffer.reset();
+				E.writeToFile(buffer, false);
+				buffer.writeFrom(skip, out);
+			}
+		}
+		return size;
+	}
+	
+	private static int writeVarInt(OutputStream out, long value) throws IOException {
+		int length = VariableLengthInt.getByteCount(value);
+		if(out != null) {
+			for(int shift = 7 * (length - 1); shift > 0; shift -= 7) {
+				out.write((int)((value >> shift) & 0x7F) | 0x80);
+			}
+			out.write((int)(value & 0x7F));
+		}
+		return length;
+	}
+	
+	private static class Buffer extends ByteArrayOutputStream {
+		
+		public void writeFrom(int offset, OutputStream out) throws IOException {
+			out.write(buf, offset, count - offset);
+		}
+	}
+}
@@ -0,0 +1,662 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.ChannelEvent;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.SystemExclusiveEvent;
+import com.voody.midilib.event.meta.MetaEvent;
+
+/**
+ * The differences between two files, track by track: the events removed
+ * from the first, the events inserted into the second, and the events that
+ * were modified, meaning a removed and an inserted event of the same kind
+ * (status byte, and note number or controller for note and controller
+ * events) in the same changed region. Events are compared by tick and by
+ * the bytes they are written as.
+ *
+ * The tracks are compared by first skipping their common start and end,
+ * then matching events that occur exactly once on both sides and keeping
+ * the longest run of matches in order. Only the regions between matches
+ * are diffed with Myers' algorithm. Tracks are compared in parallel.
+ *
+ * toPatch() encodes the differences compactly; applyPatch() applies them
+ * to a file equal to the first one, turning it into the second.
+ */
+public class MidiDiff {
+	
+	private static final byte[] MAGIC = { 'M', 'D', 'i', 'f' };
+	
+	// Regions that need more edits than this are treated as replaced
+	// outright; Myers' algorithm takes O(d^2) memory
+	private static final int MAX_EDITS = 1024;
+	
+	private int mOldResolution;
+	private int mResolution;
+	private int mTrackCount;
+	private TrackDiff[] mTracks;
+	
+	public static class TrackDiff {
+		
+		private ArrayList<MidiEvent> mRemoved = new ArrayList<MidiEvent>();
+		private ArrayList<MidiEvent> mInserted = new ArrayList<MidiEvent>();
+		private ArrayList<MidiEvent[]> mModified = new ArrayList<MidiEvent[]>();
+		
+		// Every event of the first track missing from the second, and every
+		// event of the second missing from the first, in order
+		private ArrayList<MidiEvent> mAllRemoved = new ArrayList<MidiEvent>();
+		private ArrayList<MidiEvent> mAllInserted = new ArrayList<MidiEvent>();
+		
+		/**
+		 * Events of the first file's track missing from the second.
+		 */
+		public List<MidiEvent> getRemoved() {
+			return mRemoved;
+		}
+		
+		/**
+		 * Events of the second file's track missing from the first.
+		 */
+		public List<MidiEvent> getInserted() {
+			return mInserted;
+		}
+		
+		/**
+		 * Pairs of { old event, new event }.
+		 */
+		public List<MidiEvent[]> getModified() {
+			return mModified;
+		}
+		
+		public boolean hasChanges() {
+			return mAllRemoved.size() > 0 || mAllInserted.size() > 0;
+		}
+	}
+	
+	private MidiDiff() {
+	}
+	
+	public static MidiDiff compute(MidiFile a, MidiFile b) {
+		
+		final ArrayList<MidiTrack> tracksA = a.getTracks();
+		final ArrayList<MidiTrack> tracksB = b.getTracks();
+		
+		final MidiDiff diff = new MidiDiff();
+		diff.mOldResolution = a.getResolution();
+		diff.mResolution = b.getResolution();
+		diff.mTrackCount = tracksB.size();
+		diff.mTracks = new TrackDiff[Math.max(tracksA.size(), tracksB.size())];
+		
+		Parallel.forEach(diff.mTracks.length, new Parallel.Task() {
+			public void run(int index) {
+				Keys keysA = new Keys(index < tracksA.size() ? tracksA.get(index) : null);
+				Keys keysB = new Keys(index < tracksB.size() ? tracksB.get(index) : null);
+				diff.mTracks[index] = diffTrack(keysA, keysB);
+			}
+		});
+		return diff;
+	}
+	
+	/**
+	 * Number of tracks of the second file.
+	 */
+	public int getTrackCount() {
+		return mTrackCount;
+	}
+	
+	/**
+	 * The differences of the given track, for every track of either file.
+	 */
+	public TrackDiff getTrackDiff(int track) {
+		return mTracks[track];
+	}
+	
+	public boolean hasChanges() {
+		for(TrackDiff T : mTracks) {
+			if(T.hasChanges()) {
+				return true;
+			}
+		}
+		return mTrackCount != mTracks.length || mResolution != mOldResolution;
+	}
+	
+	/**
+	 * The differences encoded as a patch for applyPatch(). Only changed
+	 * tracks are written, each as its removed and inserted events.
+	 */
+	public byte[] toPatch() {
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			out.write(MAGIC);
+			writeVarLong(out, mResolution);
+			writeVarLong(out, mTrackCount);
+			
+			int changed = 0;
+			for(int t = 0; t < mTrackCount; t++) {
+				if(mTracks[t].hasChanges()) {
+					changed++;
+				}
+			}
+			writeVarLong(out, changed);
+			
+			Buffer buffer = new Buffer();
+			for(int t = 0; t < mTrackCount; t++) {
+				TrackDiff T = mTracks[t];
+				if(!T.hasChanges()) {
+					continue;
+				}
+				writeVarLong(out, t);
+				writeEvents(out, T.mAllRemoved, buffer);
+				writeEvents(out, T.mAllInserted, buffer);
+			}
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Applies a patch made by toPatch() to a file equal to the first file it
+	 * was computed from. The file is only changed if every removed event is
+	 * found in it. Returns whether the patch was applied.
+	 */
+	public static boolean applyPatch(MidiFile file, byte[] patch) {
+		
+		ByteArrayInputStream in = new ByteArrayInputStream(patch);
+		int resolution;
+		int trackCount;
+		int[] indices;
+		ArrayList<ArrayList<MidiEvent>> events = new ArrayList<ArrayList<MidiEvent>>();
+		
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			if(in.read(magic) != magic.length || !Arrays.equals(magic, MAGIC)) {
+				System.err.println("Error: Not a MIDI patch.");
+				return false;
+			}
+			resolution = (int)readVarLong(in);
+			trackCount = (int)readVarLong(in);
+			
+			indices = new int[(int)readVarLong(in)];
+			Buffer buffer = new Buffer();
+			for(int i = 0; i < indices.length; i++) {
+				
+				indices[i] = (int)readVarLong(in);
+				MidiTrack T = indices[i] < file.getTrackCount() ? file.getTracks().get(indices[i]) : null;
+				if(T != null && T.isReadOnly()) {
+					System.err.println("Error: Cannot patch a snapshot track.");
+					return false;
+				}
+				
+				// Find the removed events in the track before changing anything
+				ArrayList<MidiEvent> removed = readEvents(in);
+				HashSet<MidiEvent> found = new HashSet<MidiEvent>();
+				for(MidiEvent E : removed) {
+					MidiEvent match = T != null ? find(T, E, found, buffer) : null;
+					if(match == null) {
+						System.err.println("Error: Patch does not apply, event not found in track " + indices[i] + ": " + E);
+						return false;
+					}
+					found.add(match);
+				}
+				
+				ArrayList<MidiEvent> result = new ArrayList<MidiEvent>();
+				if(T != null) {
+					for(MidiEvent E : T.getEvents()) {
+						if(!found.contains(E)) {
+							result.add(E);
+						}
+					}
+				}
+				result.addAll(readEvents(in));
+				events.add(result);
+			}
+		} catch(IOException e) {
+			System.err.println("Error: Malformed MIDI patch: " + e.getMessage());
+			return false;
+		}
+		
+		if(file.getResolution() != resolution) {
+			file.setResolution(resolution);
+		}
+		while(file.getTrackCount() > trackCount) {
+			file.removeTrack(file.getTrackCount() - 1);
+		}
+		while(file.getTrackCount() < trackCount) {
+			file.addTrack(new MidiTrack());
+		}
+		for(int i = 0; i < indices.length; i++) {
+			file.getTracks().get(indices[i]).replaceEvents(events.get(i));
+		}
+		return true;
+	}
+	
+	/**
+	 * Applies these differences to a file equal to the first file. The
+	 * inserted events are copies, so the second file is left as it is.
+	 */
+	public boolean apply(MidiFile file) {
+		return applyPatch(file, toPatch());
+	}
+	
+	private static TrackDiff diffTrack(Keys a, Keys b) {
+		
+		int[] matchA = new int[a.mCount];
+		int[] matchB = new int[b.mCount];
+		Arrays.fill(matchA, -1);
+		Arrays.fill(matchB, -1);
+		
+		diffRange(a, 0, a.mCount, b, 0, b.mCount, matchA, matchB);
+		
+		// Walk both tracks, collecting the unmatched events of each gap
+		// between matches
+		TrackDiff diff = new TrackDiff();
+		int i = 0, j = 0;
+		while(i < a.mCount || j < b.mCount) {
+			if(i < a.mCount && matchA[i] == j) {
+				i++;
+				j++;
+				continue;
+			}
+			int startA = i, startB = j;
+			while(i < a.mCount && matchA[i] < 0) {
+				i++;
+			}
+			while(j < b.mCount && matchB[j] < 0) {
+				j++;
+			}
+			addHunk(diff, a, startA, i, b, startB, j);
+		}
+		return diff;
+	}
+	
+	// Pairs removed and inserted events of the same kind, in order, as
+	// modifications
+	private static void addHunk(TrackDiff diff, Keys a, int aLo, int aHi, Keys b, int bLo, int bHi) {
+		
+		HashMap<Integer, ArrayList<Integer>> byKind = new HashMap<Integer, ArrayList<Integer>>();
+		for(int j = bLo; j < bHi; j++) {
+			diff.mAllInserted.add(b.mEvents[j]);
+			Integer kind = getKind(b.mBytes[j]);
+			ArrayList<Integer> list = byKind.get(kind);
+			if(list == null) {
+				list = new ArrayList<Integer>();
+				byKind.put(kind, list);
+			}
+			list.add(j);
+		}
+		
+		boolean[] paired = new boolean[bHi - bLo];
+		HashMap<Integer, Integer> next = new HashMap<Integer, Integer>();
+		for(int i = aLo; i < aHi; i++) {
+			diff.mAllRemoved.add(a.mEvents[i]);
+			Integer kind = getKind(a.mBytes[i]);
+			ArrayList<Integer> list = byKind.get(kind);
+			Integer n = next.get(kind);
+			int k = n != null ? n : 0;
+			if(list == null || k >= list.size()) {
+				diff.mRemoved.add(a.mEvents[i]);
+				continue;
+			}
+			int j = list.get(k);
+			next.put(kind, k + 1);
+			paired[j - bLo] = true;
+			diff.mModified.add(new MidiEvent[] { a.mEvents[i], b.mEvents[j] });
+		}
+		for(int j = bLo; j < bHi; j++) {
+			if(!paired[j - bLo]) {
+				diff.mInserted.add(b.mEvents[j]);
+			}
+		}
+	}
+	
+	private static void diffRange(Keys a, int aLo, int aHi, Keys b, int bLo, int bHi, int[] matchA, int[] matchB) {
+		
+		// Common start and end
+		while(aLo < aHi && bLo < bHi && a.same(aLo, b, bLo)) {
+			match(aLo++, bLo++, matchA, matchB);
+		}
+		while(aLo < aHi && bLo < bHi && a.same(aHi - 1, b, bHi - 1)) {
+			match(--aHi, --bHi, matchA, matchB);
+		}
+		if(aLo == aHi || bLo == bHi) {
+			return;
+		}
+		
+		// Events occurring once on each side
+		HashMap<Long, long[]> counts = new HashMap<Long, long[]>();
+		for(int i = aLo; i < aHi; i++) {
+			long[] c = counts.get(a.mHashes[i]);
+			if(c == null) {
+				c = new long[4];
+				counts.put(a.mHashes[i], c);
+			}
+			c[0]++;
+			c[2] = i;
+		}
+		for(int j = bLo; j < bHi; j++) {
+			long[] c = counts.get(b.mHashes[j]);
+			if(c != null) {
+				c[1]++;
+				c[3] = j;
+			}
+		}
+		
+		int[] anchorA = new int[aHi - aLo];
+		int[] anchorB = new int[aHi - aLo];
+		int anchors = 0;
+		for(int i = aLo; i < aHi; i++) {
+			long[] c = counts.get(a.mHashes[i]);
+			if(c[0] == 1 && c[1] == 1 && a.same(i, b, (int)c[3])) {
+				anchorA[anchors] = i;
+				anchorB[anchors] = (int)c[3];
+				anchors++;
+			}
+		}
+		
+		if(anchors == 0) {
+			myers(a, aLo, aHi, b, bLo, bHi, matchA, matchB);
+			return;
+		}
+		
+		// The longest run of anchors in order on both sides, then the gaps
+		// between them
+		int[] keep = longestIncreasing(anchorB, anchors);
+		int prevA = aLo, prevB = bLo;
+		for(int k : keep) {
+			diffRange(a, prevA, anchorA[k], b, prevB, anchorB[k], matchA, matchB);
+			match(anchorA[k], anchorB[k], matchA, matchB);
+			prevA = anchorA[k] + 1;
+			prevB = anchorB[k] + 1;
+		}
+		diffRange(a, prevA, aHi, b, prevB, bHi, matchA, matchB);
+	}
+	
+	// Indices of a longest strictly increasing subsequence of values, by
+	// patience sorting
+	private static int[] longestIncreasing(int[] values, int count) {
+		
+		int[] tails = new int[count];
+		int[] prev = new int[count];
+		int length = 0;
+		
+		for(int i = 0; i < count; i++) {
+			int lo = 0, hi = length;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(values[tails[mid]] < values[i]) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			prev[i] = lo > 0 ? tails[lo - 1] : -1;
+			tails[lo] = i;
+			if(lo == length) {
+				length++;
+			}
+		}
+		
+		int[] result = new int[length];
+		for(int i = length - 1, k = tails[length - 1]; i >= 0; i--, k = prev[k]) {
+			result[i] = k;
+		}
+		return result;
+	}
+	
+	// Myers' O(nd) shortest edit script. Leaves the region unmatched if it
+	// needs more than MAX_EDITS edits.
+	private static void myers(Keys a, int aLo, int aHi, Keys b, int bLo, int bHi, int[] matchA, int[] matchB) {
+		
+		int n = aHi - aLo;
+		int m = bHi - bLo;
+		int max = Math.min(n + m, MAX_EDITS);
+		int offset = max + 1;
+		int[] v = new int[2 * max + 3];
+		
+		// trace.get(d) holds v[-d..d] as it was before step d
+		ArrayList<int[]> trace = new ArrayList<int[]>();
+		
+		for(int d = 0; d <= max; d++) {
+			
+			int[] saved = new int[2 * d + 1];
+			System.arraycopy(v, offset - d, saved, 0, saved.length);
+			trace.add(saved);
+			
+			for(int k = -d; k <= d; k += 2) {
+				int x;
+				if(k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+					x = v[offset + k + 1];
+				} else {
+					x = v[offset + k - 1] + 1;
+				}
+				int y = x - k;
+				while(x < n && y < m && a.same(aLo + x, b, bLo + y)) {
+					x++;
+					y++;
+				}
+				v[offset + k] = x;
+				
+				if(x >= n && y >= m) {
+					backtrack(trace, d, n, m, aLo, bLo, matchA, matchB);
+					return;
+				}
+			}
+		}
+	}
+	
+	private static void backtrack(ArrayList<int[]> trace, int d, int x, int y, int aLo, int bLo, int[] matchA, int[] matchB) {
+		
+		for(; d > 0; d--) {
+			int[] v = trace.get(d);
+			int k = x - y;
+			
+			// v holds k from -d to d at v[k + d]
+			int prevK;
+			if(k == -d || (k != d && v[k - 1 + d] < v[k + 1 + d])) {
+				prevK = k + 1;
+			} else {
+				prevK = k - 1;
+			}
+			int prevX = v[prevK + d];
+			int prevY = prevX - prevK;
+			
+			while(x > prevX && y > prevY) {
+				x--;
+				y--;
+				match(aLo + x, bLo + y, matchA, matchB);
+			}
+			x = prevX;
+			y = prevY;
+		}
+		while(x > 0 && y > 0) {
+			x--;
+			y--;
+			match(aLo + x, bLo + y, matchA, matchB);
+		}
+	}
+	
+	private static void match(int i, int j, int[] matchA, int[] matchB) {
+		matchA[i] = j;
+		matchB[j] = i;
+	}
+	
+	// The status byte, with the note or controller number for note and
+	// controller events and the type for meta events
+	private static int getKind(byte[] bytes) {
+		int status = bytes[0] & 0xFF;
+		int type = status >> 4;
+		if(status == 0xFF || type == ChannelEvent.NOTE_OFF || type == ChannelEvent.NOTE_ON
+				|| type == ChannelEvent.NOTE_AFTERTOUCH || type == ChannelEvent.CONTROLLER) {
+			return (status << 8) | (bytes[1] & 0xFF);
+		}
+		return status << 8;
+	}
+	
+	private static MidiEvent find(MidiTrack T, MidiEvent E, HashSet<MidiEvent> found, Buffer buffer) throws IOException {
+		byte[] bytes = buffer.getEventBytes(E);
+		for(MidiEvent candidate : T.getEvents(E.getTick(), E.getTick() + 1)) {
+			if(!found.contains(candidate) && Arrays.equals(bytes, buffer.getEventBytes(candidate))) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+	
+	// Events as their count, then each as its tick relative to the one
+	// before and the bytes it is written as, with its status byte
+	private static void writeEvents(OutputStream out, List<MidiEvent> events, Buffer buffer) throws IOException {
+		writeVarLong(out, events.size());
+		long lastTick = 0;
+		for(MidiEvent E : events) {
+			writeVarLong(out, E.getTick() - lastTick);
+			lastTick = E.getTick();
+			out.write(buffer.getEventBytes(E));
+		}
+	}
+	
+	private static ArrayList<MidiEvent> readEvents(InputStream in) throws IOException {
+		
+		int count = (int)readVarLong(in);
+		ArrayList<MidiEvent> events = new ArrayList<MidiEvent>(count);
+		long tick = 0;
+		for(int i = 0; i < count; i++) {
+			tick += readVarLong(in);
+			
+			int status = in.read();
+			MidiEvent E;
+			if(status == 0xFF) {
+				E = MetaEvent.parseMetaEvent(tick, 0, in);
+			}
+			else if(status == 0xF0 || status == 0xF7) {
+				byte[] data = new byte[new VariableLengthInt(in).getValue()];
+				if(in.read(data) != data.length) {
+					throw new IOException("Truncated SysEx event");
+				}
+				E = new SystemExclusiveEvent(status, tick, data);
+			}
+			else if(status >= 0x80 && status < 0xF0) {
+				E = ChannelEvent.parseChannelEvent(tick, 0, status >> 4, status & 0x0F, in);
+			}
+			else {
+				throw new IOException("Bad status byte " + status);
+			}
+			if(E == null) {
+				throw new IOException("Bad event");
+			}
+			events.add(E);
+		}
+		return events;
+	}
+	
+	private static void writeVarLong(OutputStream out, long value) throws IOException {
+		while((value & ~0x7FL) != 0) {
+			out.write((int)(value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+	
+	private static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if(b < 0) {
+				throw new IOException("Truncated patch");
+			}
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Bad number");
+	}
+	
+	/**
+	 * The events of a track with their ticks, the bytes they are written as
+	 * and a hash of both, for comparing events across files.
+	 */
+	private static class Keys {
+		
+		private int mCount;
+		private MidiEvent[] mEvents;
+		private long[] mTicks;
+		private byte[][] mBytes;
+		private long[] mHashes;
+		
+		public Keys(MidiTrack T) {
+			
+			mCount = T != null ? T.getEventCount() : 0;
+			mEvents = T != null ? T.getEvents().toArray(new MidiEvent[mCount]) : new MidiEvent[0];
+			mCount = mEvents.length;
+			mTicks = new long[mCount];
+			mBytes = new byte[mCount][];
+			mHashes = new long[mCount];
+			
+			Buffer buffer = new Buffer();
+			for(int i = 0; i < mCount; i++) {
+				mTicks[i] = mEvents[i].getTick();
+				try {
+					mBytes[i] = buffer.getEventBytes(mEvents[i]);
+				} catch(IOException e) {
+					throw new IllegalStateException(e);
+				}
+				
+				// FNV-1a over the tick and the bytes
+				long h = 0xcbf29ce484222325L;
+				for(int s = 0; s < 64; s += 8) {
+					h = (h ^ ((mTicks[i] >>> s) & 0xFF)) * 0x100000001b3L;
+				}
+				for(byte x : mBytes[i]) {
+					h = (h ^ (x & 0xFF)) * 0x100000001b3L;
+				}
+				mHashes[i] = h;
+			}
+		}
+		
+		public boolean same(int i, Keys other, int j) {
+			return mHashes[i] == other.mHashes[j] && mTicks[i] == other.mTicks[j] && Arrays.equals(mBytes[i], other.mBytes[j]);
+		}
+	}
+	
+	private static class Buffer extends ByteArrayOutputStream {
+		
+		// The bytes E is written as, with its status byte and without its delta
+		public byte[] getEventBytes(MidiEvent E) throws IOException {
+			reset();
+			E.writeToFile(this, true);
+			int skip = VariableLengthInt.getByteCount(E.getDelta());
+			byte[] bytes = new byte[count - skip];
+			System.arraycopy(buf, skip, bytes, 0, bytes.length);
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.io.File;
+import java.math.RoundingMode;
+import java.util.List;
+
+import com.voody.midilib.MidiFile;
+
+/**
+ * A fingerprint of the notes of a file, for finding copies of the same
+ * music. Only the start, duration and pitch of each note are used, with
+ * times converted to a fixed resolution, so copies differing in track
+ * order, channels, velocities, meta events, running status or resolution
+ * get the same fingerprint.
+ *
+ * getHash() identifies the exact set of notes. The MinHash signature
+ * estimates how many runs of NGRAM consecutive notes two files share, for
+ * finding near duplicates; see FingerprintIndex.
+ */
+public class MidiFingerprint {
+	
+	public static final int SIGNATURE_SIZE = 64;
+	public static final int NGRAM = 4;
+	
+	// Resolution note times are converted to before hashing
+	private static final int RESOLUTION = 960;
+	
+	private static final long[] SEEDS = new long[SIGNATURE_SIZE];
+	static {
+		for(int i = 0; i < SIGNATURE_SIZE; i++) {
+			SEEDS[i] = mix(0x9E3779B97F4A7C15L * (i + 1));
+		}
+	}
+	
+	private int mNoteCount;
+	private long mHash;
+	private long[] mSignature;
+	
+	public MidiFingerprint(MidiFile file) {
+		this(file.getCache().getNoteIndex(), file.getResolution());
+	}
+	
+	public MidiFingerprint(NoteIndex notes, int resolution) {
+		
+		int n = notes.getNoteCount();
+		mNoteCount = n;
+		if(resolution <= 0) {
+			resolution = MidiFile.DEFAULT_RESOLUTION;
+		}
+		
+		long[] start = new long[n];
+		long[] duration = new long[n];
+		long[] key = new long[n];
+		int[] order = new int[n];
+		
+		// The hash is a sum over the notes, so it does not depend on their order
+		long hash = n;
+		for(int i = 0; i < n; i++) {
+			start[i] = MidiUtil.scaleTicks(notes.getStart(i), RESOLUTION, resolution, RoundingMode.HALF_EVEN);
+			duration[i] = MidiUtil.scaleTicks(notes.getDuration(i), RESOLUTION, resolution, RoundingMode.HALF_EVEN);
+			key[i] = start[i] * 128 + notes.getPitch(i);
+			order[i] = i;
+			hash += mix(mix(key[i]) ^ duration[i]);
+		}
+		mHash = hash;
+		
+		// Notes in time order, then by pitch, then by duration
+		int[] tmp = new int[n];
+		NoteIndex.sortByKey(order, 0, n, duration, tmp);
+		NoteIndex.sortByKey(order, 0, n, key, tmp);
+		
+		mSignature = new long[SIGNATURE_SIZE];
+		for(int k = 0; k < SIGNATURE_SIZE; k++) {
+			mSignature[k] = Long.MAX_VALUE;
+		}
+		
+		// Each n-gram is hashed from its pitches and the gaps between its
+		// starts, so the same passage matches wherever it occurs
+		for(int i = 0; i + NGRAM <= n; i++) {
+			long h = 0;
+			for(int j = 0; j < NGRAM; j++) {
+				int note = order[i + j];
+				long gap = j > 0 ? start[note] - start[order[i + j - 1]] : 0;
+				h = mix(h ^ (gap * 128 + notes.getPitch(note)));
+			}
+			for(int k = 0; k < SIGNATURE_SIZE; k++) {
+				long v = mix(h ^ SEEDS[k]);
+				if(v < mSignature[k]) {
+					mSignature[k] = v;
+				}
+			}
+		}
+	}
+	
+	public int getNoteCount() {
+		return mNoteCount;
+	}
+	
+	/**
+	 * Equal for files with the same notes.
+	 */
+	public long getHash() {
+		return mHash;
+	}
+	
+	public long[] getSignature() {
+		return mSignature;
+	}
+	
+	public boolean isDuplicateOf(MidiFingerprint other) {
+		return mHash == other.mHash && mNoteCount == other.mNoteCount;
+	}
+	
+	/**
+	 * Estimated share of n-grams the two files have in common, from 0 to 1.
+	 */
+	public float getSimilarity(MidiFingerprint other) {
+		int same = 0;
+		for(int k = 0; k < SIGNATURE_SIZE; k++) {
+			if(mSignature[k] == other.mSignature[k]) {
+				same++;
+			}
+		}
+		return same / (float)SIGNATURE_SIZE;
+	}
+	
+	/**
+	 * Reads and fingerprints the files in parallel. Files that cannot be
+	 * read get a null fingerprint.
+	 */
+	public static MidiFingerprint[] compute(final List<File> files) {
+		
+		final MidiFingerprint[] result = new MidiFingerprint[files.size()];
+		Parallel.forEach(files.size(), new Parallel.Task() {
+			public void run(int index) {
+				try {
+					MidiFile file = new MidiFile(files.get(index));
+					result[index] = new MidiFingerprint(new NoteIndex(file), file.getResolution());
+				} catch(Exception e) {
+					System.err.println("Error: Cannot fingerprint " + files.get(index) + ": " + e);
+				}
+			}
+		});
+		return result;
+	}
+	
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,148 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.meta.Tempo;
+
+/**
+ * Combines files authored separately, each with its own resolution and
+ * tempo changes, into one file on a common resolution and a single master
+ * tempo map. Every event keeps its wall-clock time: its tick is converted
+ * to a time with the tempo map of its own file, then back to a tick with
+ * the master map. Notes are kept at least one tick long.
+ *
+ * The result holds a conductor track with the master tempo changes followed
+ * by the tracks of every input, in order, without their Tempo events. The
+ * result holds copies of the events, so the inputs are left as they were.
+ * Inputs are retimed in parallel.
+ */
+public class MidiMerge {
+	
+	private static final int CHUNK = 4096;
+	
+	/**
+	 * Merges the inputs on the given resolution, following the tempo changes
+	 * of the input at masterIndex.
+	 */
+	public static MidiFile merge(List<MidiFile> inputs, int resolution, int masterIndex) {
+		
+		MidiFile master = inputs.get(masterIndex);
+		TempoMap source = new TempoMap(master);
+		TempoMap map = new TempoMap(resolution);
+		for(int i = 0; i < source.getTempoCount(); i++) {
+			long tick = MidiUtil.scaleTicks(source.getTempoTick(i), map.getResolution(), source.getResolution(), RoundingMode.HALF_EVEN);
+			map.setTempo(tick, source.getTempoMpqn(i));
+		}
+		return merge(inputs, map);
+	}
+	
+	/**
+	 * Merges the inputs on the resolution and tempo changes of the given map.
+	 */
+	public static MidiFile merge(List<MidiFile> inputs, final TempoMap master) {
+		
+		final ArrayList<ArrayList<MidiTrack>> retimed = new ArrayList<ArrayList<MidiTrack>>();
+		for(int i = 0; i < inputs.size(); i++) {
+			retimed.add(null);
+		}
+		
+		final List<MidiFile> files = inputs;
+		Parallel.forEach(inputs.size(), new Parallel.Task() {
+			public void run(int index) {
+				retimed.set(index, retime(files.get(index), master));
+			}
+		});
+		
+		ArrayList<MidiTrack> tracks = new ArrayList<MidiTrack>();
+		
+		MidiTrack conductor = new MidiTrack();
+		ArrayList<MidiEvent> tempos = new ArrayList<MidiEvent>();
+		for(int i = 0; i < master.getTempoCount(); i++) {
+			tempos.add(new Tempo(master.getTempoTick(i), 0, master.getTempoMpqn(i)));
+		}
+		conductor.replaceEvents(tempos);
+		tracks.add(conductor);
+		
+		for(ArrayList<MidiTrack> list : retimed) {
+			tracks.addAll(list);
+		}
+		return new MidiFile(master.getResolution(), tracks);
+	}
+	
+	// Moves the events of every track of the file onto the master map. The
+	// tracks are walked merged so the ticks reach the tempo maps in
+	// ascending order and are converted a chunk at a time.
+	private static ArrayList<MidiTrack> retime(MidiFile file, TempoMap master) {
+		
+		TempoMap map = new TempoMap(file);
+		int trackCount = file.getTrackCount();
+		
+		ArrayList<ArrayList<MidiEvent>> events = new ArrayList<ArrayList<MidiEvent>>(trackCount);
+		MidiTransforms.NoteGuard[] guards = new MidiTransforms.NoteGuard[trackCount];
+		for(int t = 0; t < trackCount; t++) {
+			events.add(new ArrayList<MidiEvent>(file.getTracks().get(t).getEventCount()));
+			guards[t] = new MidiTransforms.NoteGuard();
+		}
+		
+		MidiEvent[] chunk = new MidiEvent[CHUNK];
+		int[] chunkTracks = new int[CHUNK];
+		long[] ticks = new long[CHUNK];
+		
+		MergedEventIterator it = new MergedEventIterator(file);
+		while(it.hasNext()) {
+			
+			int n = 0;
+			while(n < CHUNK && it.hasNext()) {
+				MidiEvent E = it.next();
+				if(E instanceof Tempo) {
+					continue;
+				}
+				chunk[n] = E;
+				chunkTracks[n] = it.getTrackIndex();
+				ticks[n] = E.getTick();
+				n++;
+			}
+			
+			map.ticksToMicros(ticks, ticks, n);
+			master.microsToTicks(ticks, ticks, n);
+			
+			for(int i = 0; i < n; i++) {
+				int t = chunkTracks[i];
+				events.get(t).add(chunk[i].copy(guards[t].place(chunk[i], ticks[i])));
+				chunk[i] = null;
+			}
+		}
+		
+		ArrayList<MidiTrack> tracks = new ArrayList<MidiTrack>();
+		for(ArrayList<MidiEvent> list : events) {
+			if(list.size() == 0) {
+				continue;
+			}
+			MidiTrack T = new MidiTrack();
+			T.replaceEvents(list);
+			tracks.add(T);
+		}
+		return tracks;
+	}
+}
@@ -19,28 +19,59 @@ package com.voody.midilib.util;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.locks.LockSupport;
 
 import com.voody.midilib.MidiFile;
 import com.voody.midilib.MidiTrack;
 import com.voody.midilib.event.MidiEvent;
-import com.voody.midilib.event.meta.Tempo;
 import com.voody.midilib.event.meta.TimeSignature;
 
+/**
+ * Plays a file in real time, dispatching its events to listeners as they
+ * fall due. Playback walks a schedule compiled from the file a window at a
+ * time: its events in order with their times worked out from the whole
+ * tempo map, so tempo changes take effect exactly and listeners get each
+ * event's own time. Edits to concurrent tracks are merged into the rest of
+ * the schedule as they are made; the tempo map is read when playback
+ * starts, so tempo changes made while playing apply from the next start.
+ * Between events the playback thread parks until the next one is due, then
+ * spins for the last getSpinMicros() to dispatch it on time.
+ */
 public class MidiProcessor {
-
-	private static final int PROCESS_RATE_MS = 8;
+	
+	// Longest park between checks for edits to concurrent tracks
+	private static final long MAX_PARK_NANOS = 8000000;
+	
+	// Events compiled ahead of playback at a time
+	private static final int SCHEDULE_WINDOW = 4096;
+	
+	public static final long DEFAULT_SPIN_MICROS = 200;
 	
 	private HashMap<Class<? extends MidiEvent>, ArrayList<MidiEventListener>> mEventListenerMap;
 	private ArrayList<MidiEventListener> mListenersToAll;
 	
 	private MidiFile mMidiFile;
-	private boolean mRunning;
+	private volatile boolean mRunning;
+	private volatile Thread mThread;
 	private double mTicksElapsed;
+	private volatile long mNanosElapsed;
 	private long mMsElapsed;
+	private long mSpinNanos = DEFAULT_SPIN_MICROS * 1000;
 	
-	private int mMPQN;
 	private int mPPQ;
 	
+	// Events in the order they are played, with their tracks and times, up
+	// to the end of a tick; mMerge continues after the last of them
+	private MidiEvent[] mSchedule;
+	private int[] mScheduleTracks;
+	private long[] mScheduleMicros;
+	private int mScheduleCount;
+	private long mScheduleEnd;
+	private long mScheduleStamp = -1;
+	private MergedEventIterator mMerge;
+	private TempoMap mTempoMap;
+	
 	private double mMetronomeProgress;
 	private int mMetronomeFrequency;
 	
@@ -51,7 +82,6 @@ public class MidiProcessor {
 		mTicksElapsed = 0;
 		mMsElapsed = 0;
 		
-		mMPQN = Tempo.DEFAULT_MPQN;
 		mPPQ = mMidiFile.getResolution();
 		
 		mMetronomeProgress = 0;
@@ -65,20 +95,49 @@ public class MidiProcessor {
 		if(mRunning) return;
 		
 		mRunning = true;
-		new Thread(new Runnable() {
+		mThread = new Thread(new Runnable() {
 			public void run() {
 				process();
 			}
-		}).start();
+		});
+		mThread.start();
 	}
 	
 	public void stop() {
 		mRunning = false;
+		
+		Thread thread = mThread;
+		if(thread != null) {
+			LockSupport.unpark(thread);
+		}
 	}
 	
+	/**
+	 * Stops playback and rewinds to the start. Called from another thread,
+	 * this waits for the playback thread to finish, so it cannot add to the
+	 * elapsed time after it is cleared.
+	 */
 	public void reset() {
-		mRunning = false;
+		stop();
+		
+		Thread thread = mThread;
+		if(thread != null && thread != Thread.currentThread()) {
+			boolean interrupted = false;
+			while(thread.isAlive()) {
+				try {
+					thread.join();
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
 		mTicksElapsed = 0;
+		mNanosElapsed = 0;
+		mMsElapsed = 0;
 	}
 	
 	public boolean isStarted() {
@@ -88,6 +147,26 @@ public class MidiProcessor {
 		return mRunning;
 	}
 	
+	/**
+	 * Playing time so far, in microseconds.
+	 */
+	public long getElapsedMicros() {
+		return mNanosElapsed / 1000;
+	}
+	
+	/**
+	 * How long before an event is due the playback thread stops parking and
+	 * spins instead. Longer spins dispatch events closer to their time, as
+	 * parking can overshoot by tens of microseconds or more, at the cost of
+	 * keeping a core busy; 0 never spins.
+	 */
+	public void setSpinMicros(long micros) {
+		mSpinNanos = Math.max(0, micros) * 1000;
+	}
+	public long getSpinMicros() {
+		return mSpinNanos / 1000;
+	}
+	
 	protected void onStart(boolean fromBeginning) {
 		Iterator<Class<? extends MidiEvent>> it = mEventListenerMap.keySet().iterator();
 		
@@ -123,7 +202,7 @@ public class MidiProcessor {
 		}
 		
 		for(MidiEventListener mel : mListenersToAll) {
-			mel.onStart(finished);
+			mel.onStop(finished);
 		}
 	}
 	
@@ -163,14 +242,11 @@ public class MidiProcessor {
 	
 	protected void dispatch(MidiEvent event) {
 		
-		// Tempo and Time Signature events are always needed by the processor
-		if(event.getClass().equals(Tempo.class)) {
-			mMPQN = ((Tempo)event).getMpqn();
-		}
-		else if(event.getClass().equals(TimeSignature.class)) {
+		// Time Signature events are always needed by the processor
+		if(event.getClass().equals(TimeSignature.class)) {
 			setMetronomeFrequency(((TimeSignature)event).getMeter());
 		}
-
+		
 		for(MidiEventListener mel : mListenersToAll) {
 			mel.onEvent(event, mMsElapsed);
 		}
@@ -205,84 +281,299 @@ public class MidiProcessor {
 		}
 	}
 	
+	/**
+	 * Compiles the start of the schedule of the file ahead of start(), which
+	 * otherwise does so itself. It is reused until the file is modified or
+	 * played past its first window.
+	 */
+	public void prepare() {
+		compile();
+	}
+	
+	// Starts the schedule over from the beginning of the file
+	private void compile() {
+		
+		long stamp = mMidiFile.getModificationCount();
+		
+		mTempoMap = mMidiFile.getCache().getTempoMap();
+		mMerge = new MergedEventIterator(mMidiFile.getTracks());
+		if(mSchedule == null) {
+			mSchedule = new MidiEvent[SCHEDULE_WINDOW];
+			mScheduleTracks = new int[SCHEDULE_WINDOW];
+			mScheduleMicros = new long[SCHEDULE_WINDOW];
+		}
+		shift(mScheduleCount);
+		mScheduleEnd = -1;
+		fill(0);
+		
+		mScheduleStamp = stamp;
+	}
+	
+	// Moves the events from 'from' on to the front of the schedule and
+	// compiles the next window after them, ending with a whole tick so the
+	// events left in mMerge are all later than the schedule
+	private void fill(int from) {
+		
+		shift(from);
+		mScheduleStamp = -1;
+		
+		int n = mScheduleCount;
+		while(mMerge.hasNext() && (n < SCHEDULE_WINDOW || mMerge.peekTick() == mScheduleEnd)) {
+			ensureCapacity(n + 1);
+			MidiEvent E = mMerge.next();
+			mSchedule[n] = E;
+			mScheduleTracks[n] = mMerge.getTrackIndex();
+			mScheduleMicros[n] = mTempoMap.tickToMicros(E.getTick());
+			mScheduleEnd = E.getTick();
+			n++;
+		}
+		mScheduleCount = n;
+	}
+	
+	// Drops the events before 'from' from the schedule
+	private void shift(int from) {
+		
+		int n = mScheduleCount - from;
+		if(from > 0) {
+			System.arraycopy(mSchedule, from, mSchedule, 0, n);
+			System.arraycopy(mScheduleTracks, from, mScheduleTracks, 0, n);
+			System.arraycopy(mScheduleMicros, from, mScheduleMicros, 0, n);
+			for(int i = n; i < mScheduleCount; i++) {
+				mSchedule[i] = null;
+			}
+		}
+		mScheduleCount = n;
+	}
+	
+	private void ensureCapacity(int size) {
+		
+		if(size <= mSchedule.length) {
+			return;
+		}
+		
+		int capacity = Math.max(size, mSchedule.length * 2);
+		
+		MidiEvent[] events = new MidiEvent[capacity];
+		int[] tracks = new int[capacity];
+		long[] micros = new long[capacity];
+		System.arraycopy(mSchedule, 0, events, 0, mSchedule.length);
+		System.arraycopy(mScheduleTracks, 0, tracks, 0, mSchedule.length);
+		System.arraycopy(mScheduleMicros, 0, micros, 0, mSchedule.length);
+		mSchedule = events;
+		mScheduleTracks = tracks;
+		mScheduleMicros = micros;
+	}
+	
+	// Replaces the events of a track not yet dispatched with those of its new
+	// event set: the ones up to the end of the schedule are merged into it,
+	// mMerge continues the track with the rest. Only this track is walked.
+	private void splice(int track, TreeSet<MidiEvent> events, MidiEvent last) {
+		
+		int n = 0;
+		for(int i = 0; i < mScheduleCount; i++) {
+			if(mScheduleTracks[i] != track) {
+				mSchedule[n] = mSchedule[i];
+				mScheduleTracks[n] = mScheduleTracks[i];
+				mScheduleMicros[n] = mScheduleMicros[i];
+				n++;
+			}
+		}
+		for(int i = n; i < mScheduleCount; i++) {
+			mSchedule[i] = null;
+		}
+		mScheduleCount = n;
+		
+		ArrayList<MidiEvent> added = new ArrayList<MidiEvent>();
+		Iterator<MidiEvent> it = resume(events, last);
+		MidiEvent rest = null;
+		while(it.hasNext()) {
+			MidiEvent E = it.next();
+			if(E.getTick() > mScheduleEnd) {
+				rest = E;
+				break;
+			}
+			added.add(E);
+		}
+		mMerge.setIterator(track, rest != null ? events.tailSet(rest).iterator() : it);
+		
+		// Merge from the back, by tick and then track like mMerge
+		ensureCapacity(n + added.size());
+		int i = n - 1;
+		for(int j = added.size() - 1; j >= 0; j--) {
+			MidiEvent E = added.get(j);
+			while(i >= 0 && (mSchedule[i].getTick() > E.getTick() || (mSchedule[i].getTick() == E.getTick() && mScheduleTracks[i] > track))) {
+				mSchedule[i + j + 1] = mSchedule[i];
+				mScheduleTracks[i + j + 1] = mScheduleTracks[i];
+				mScheduleMicros[i + j + 1] = mScheduleMicros[i];
+				i--;
+			}
+			mSchedule[i + j + 1] = E;
+			mScheduleTracks[i + j + 1] = track;
+			mScheduleMicros[i + j + 1] = mTempoMap.tickToMicros(E.getTick());
+		}
+		mScheduleCount = n + added.size();
+	}
+	
 	private void process() {
 		
 		onStart(mTicksElapsed < 1);
 		
 		ArrayList<MidiTrack> tracks = mMidiFile.getTracks();
-		ArrayList<Iterator<MidiEvent>> iterators = new ArrayList<Iterator<MidiEvent>>();
-		MidiEvent[] currEvents = new MidiEvent[tracks.size()];
+		MidiEvent[] lastEvents = new MidiEvent[tracks.size()];
 		
+		// Tracks in concurrent mode publish a new event set on every edit;
+		// keep the set each of them was compiled from so edits can be picked
+		// up. Other tracks need no checks, which keeps a wake-up independent
+		// of the number of tracks.
+		ArrayList<Integer> concurrent = new ArrayList<Integer>();
+		ArrayList<TreeSet<MidiEvent>> eventSets = new ArrayList<TreeSet<MidiEvent>>();
 		for(int i = 0; i < tracks.size(); i++) {
-			iterators.add(tracks.get(i).getEvents().iterator());
-			if(iterators.get(i).hasNext()) {
-				currEvents[i] = iterators.get(i).next();
+			if(tracks.get(i).isConcurrent()) {
+				concurrent.add(i);
+				eventSets.add(tracks.get(i).getEvents());
 			}
 		}
 		
-		long lastMs = System.currentTimeMillis();
+		if(mScheduleStamp < 0 || mScheduleStamp != mMidiFile.getModificationCount()) {
+			compile();
+		}
+		
+		// Resuming after stop() continues from the events not yet due
+		int next = 0;
+		long startMicros = getElapsedMicros();
+		while(startMicros > 0) {
+			while(next < mScheduleCount && mScheduleMicros[next] <= startMicros) {
+				lastEvents[mScheduleTracks[next]] = mSchedule[next];
+				next++;
+			}
+			if(next < mScheduleCount || !mMerge.hasNext()) {
+				break;
+			}
+			fill(next);
+			next = 0;
+		}
+		
+		long tick = mTempoMap.microsToTick(startMicros);
+		long lastNanos = System.nanoTime();
 		
 		boolean finished = false;
 		
-		top:
 		while(mRunning) {
-			long now = System.currentTimeMillis();
-			long msElapsed = now - lastMs;
-			if(msElapsed < PROCESS_RATE_MS) {
-				continue;
-			}
+			long now = System.nanoTime();
+			mNanosElapsed += now - lastNanos;
+			lastNanos = now;
 			
-			double ticksElapsed = MidiUtil.msToTicks(msElapsed, mMPQN, mPPQ);
+			long micros = getElapsedMicros();
 			
-			if(ticksElapsed < 1) {
-				continue;
+			if(update(tracks, concurrent, eventSets, lastEvents, next)) {
+				next = 0;
 			}
 			
-			mMetronomeProgress += ticksElapsed;
-			if(mMetronomeProgress >= mMetronomeFrequency) {
+			long currentTick = mTempoMap.microsToTick(micros);
+			mMetronomeProgress += currentTick - tick;
+			tick = currentTick;
+			mTicksElapsed = tick;
+			if(mMetronomeFrequency > 0 && mMetronomeProgress >= mMetronomeFrequency) {
 				mMetronomeProgress %= mMetronomeFrequency;
+				mMsElapsed = micros / 1000;
 				dispatch(MetronomeTick.getInstance());
 			}
 			
-			lastMs = now;
-			mMsElapsed += msElapsed;
-			mTicksElapsed += ticksElapsed;
-
-			for(int i = 0; i < tracks.size(); i++) {
-				
-				while(currEvents[i] != null && currEvents[i].getTick() <= mTicksElapsed) {
-
-					dispatch(currEvents[i]);
-					
-					if(iterators.get(i).hasNext()) {
-						currEvents[i] = iterators.get(i).next();
-					} else {
-						currEvents[i] = null;
-						break;
-					}
+			// Listeners get each event's own time rather than the wake-up's
+			while(true) {
+				while(next < mScheduleCount && mScheduleMicros[next] <= micros) {
+					lastEvents[mScheduleTracks[next]] = mSchedule[next];
+					mMsElapsed = mScheduleMicros[next] / 1000;
+					dispatch(mSchedule[next]);
+					next++;
 				}
+				if(next < mScheduleCount || !mMerge.hasNext()) {
+					break;
+				}
+				fill(next);
+				next = 0;
 			}
+			mMsElapsed = micros / 1000;
 			
-			for(int i = 0; i < tracks.size(); i++) {
-				if(iterators.get(i).hasNext()) {
-					continue top;
+			if(next == mScheduleCount) {
+				if(!update(tracks, concurrent, eventSets, lastEvents, next)) {
+					finished = true;
+					break;
 				}
+				next = 0;
 			}
-
-			finished = true;
-			break;
+			
+			long due = next < mScheduleCount ? mScheduleMicros[next] : Long.MAX_VALUE;
+			if(mMetronomeFrequency > 0) {
+				due = Math.min(due, mTempoMap.tickToMicros(tick + (long)Math.ceil(mMetronomeFrequency - mMetronomeProgress)));
+			}
+			waitFor(due == Long.MAX_VALUE ? MAX_PARK_NANOS : due * 1000 - mNanosElapsed);
 		}
 		
 		mRunning = false;
 		onStop(finished);
 	}
 	
+	// Parks for the given time, spinning for the last mSpinNanos. Returns
+	// early when stopped.
+	private void waitFor(long nanos) {
+		
+		long deadline = System.nanoTime() + Math.min(nanos, MAX_PARK_NANOS);
+		
+		while(mRunning) {
+			long left = deadline - System.nanoTime();
+			if(left <= 0) {
+				return;
+			}
+			if(left > mSpinNanos) {
+				LockSupport.parkNanos(this, left - mSpinNanos);
+			}
+		}
+	}
+	
+	// Splices the new event set of every concurrent track edited since it
+	// was last checked into the schedule, dropping the events before next.
+	// Returns whether any track was edited.
+	private boolean update(ArrayList<MidiTrack> tracks, ArrayList<Integer> concurrent, ArrayList<TreeSet<MidiEvent>> eventSets, MidiEvent[] lastEvents, int next) {
+		
+		boolean edited = false;
+		for(int c = 0; c < concurrent.size(); c++) {
+			int track = concurrent.get(c);
+			TreeSet<MidiEvent> set = tracks.get(track).getEvents();
+			if(set == eventSets.get(c)) {
+				continue;
+			}
+			if(!edited) {
+				shift(next);
+				mScheduleStamp = -1;
+				edited = true;
+			}
+			eventSets.set(c, set);
+			splice(track, set, lastEvents[track]);
+		}
+		return edited;
+	}
+	
+	// Iterator over the events that follow the last dispatched event
+	private static Iterator<MidiEvent> resume(TreeSet<MidiEvent> events, MidiEvent last) {
+		
+		if(last == null) {
+			return events.iterator();
+		}
+		
+		Iterator<MidiEvent> it = events.tailSet(last).iterator();
+		if(events.contains(last)) {
+			it.next();
+		}
+		return it;
+	}
+	
 	/**
 	 * An event specifically for the processor to broadcast metronome ticks
 	 * so that observers need not rely on time conversions.
 	 */
 	public static class MetronomeTick extends MidiEvent {
-
+		
 		private static MetronomeTick instance = new MetronomeTick();
 		public static MetronomeTick getInstance() {
 			return instance;
@@ -290,12 +581,19 @@ public class MidiProcessor {
 		private MetronomeTick() {
 			super(0, 0);
 		}
-
+		
 		@Override
 		public int compareTo(MidiEvent o) {
 			return 0;
 		}
-
+		
+		@Override
+		public MidiEvent copy(long tick) {
+			MetronomeTick copy = new MetronomeTick();
+			copy.setTick(tick);
+			return copy;
+		}
+		
 		@Override
 		protected int getEventSize() {
 			return 0;
@@ -0,0 +1,287 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.ChannelEvent;
+import com.voody.midilib.event.Controller;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.NoteOff;
+import com.voody.midilib.event.NoteOn;
+import com.voody.midilib.event.meta.EndOfTrack;
+import com.voody.midilib.event.meta.MetaEvent;
+import com.voody.midilib.event.meta.TimeSignature;
+
+/**
+ * Cuts a time range out of a file into a new file that plays correctly on
+ * its own. The program, controller and pitch bend state of every channel,
+ * and the tempo, time and key signature, in effect at the start of the
+ * range are added at its start. Notes sounding at the start are struck
+ * again there, and notes still sounding at the end are ended there.
+ *
+ * Bank select goes ahead of the program it applies to. Channel mode
+ * messages (controllers 120-127) are not chased, as they would reset the
+ * state added with them, and neither are RPN and NRPN parameters and
+ * their data entry: once only the last value of each controller is kept,
+ * a data entry no longer belongs to a parameter.
+ *
+ * Slicing keeps an index of the state events of each source track, and its
+ * note index, in the file's MidiCache, so after the first slice of a file
+ * the state is found by binary searches rather than scans. The source is
+ * not modified; the slice holds copies of its events.
+ */
+public class MidiSlicer {
+	
+	private static final int[] CHASED_META = { MetaEvent.TEMPO, MetaEvent.TIME_SIGNATURE, MetaEvent.KEY_SIGNATURE };
+	
+	// Chased events of a channel: bank select MSB and LSB, program, pitch
+	// bend, then each other controller
+	private static final int CHANNEL_SLOTS = 4 + 128;
+	
+	private static final MidiCache.TrackValue<ChaseIndex> CHASE_INDEX = new MidiCache.TrackValue<ChaseIndex>() {
+		public ChaseIndex compute(MidiTrack track) {
+			return new ChaseIndex(track);
+		}
+	};
+	
+	/**
+	 * The events from fromTick up to, but not including, toTick, moved to
+	 * start at tick 0. The slice lasts exactly toTick - fromTick ticks.
+	 */
+	public static MidiFile slice(MidiFile file, long fromTick, long toTick) {
+		
+		if(fromTick < 0) {
+			fromTick = 0;
+		}
+		if(toTick < fromTick) {
+			toTick = fromTick;
+		}
+		
+		MidiCache cache = file.getCache();
+		ArrayList<MidiTrack> tracks = new ArrayList<MidiTrack>();
+		for(MidiTrack T : file.getTracks()) {
+			tracks.add(sliceTrack(T, cache.getNoteIndex(T), cache.get(T, CHASE_INDEX), fromTick, toTick));
+		}
+		return new MidiFile(file.getResolution(), tracks);
+	}
+	
+	/**
+	 * The tick at which the given bar starts, counting from bar 0, following
+	 * the time signatures of the file. Bars 17 to 32, as counted by
+	 * musicians, are slice(file, getBarTick(file, 16), getBarTick(file, 32)).
+	 */
+	public static long getBarTick(MidiFile file, int bar) {
+		
+		ArrayList<MidiEvent> signatures = new ArrayList<MidiEvent>();
+		for(MidiTrack T : file.getTracks()) {
+			signatures.addAll(T.getMetaEvents(MetaEvent.TIME_SIGNATURE));
+		}
+		Collections.sort(signatures, new Comparator<MidiEvent>() {
+			public int compare(MidiEvent a, MidiEvent b) {
+				return a.getTick() < b.getTick() ? -1 : (a.getTick() == b.getTick() ? 0 : 1);
+			}
+		});
+		
+		int resolution = file.getResolution();
+		long start = 0;
+		long barLength = 4L * resolution;
+		long bars = 0;
+		
+		for(MidiEvent E : signatures) {
+			TimeSignature ts = (TimeSignature)E;
+			long length = (long)ts.getNumerator() * 4 * resolution / Math.max(1, ts.getRealDenominator());
+			if(length <= 0) {
+				continue;
+			}
+			
+			long count = (E.getTick() - start + barLength - 1) / barLength;
+			if(bar < bars + count) {
+				break;
+			}
+			bars += count;
+			start += count * barLength;
+			barLength = length;
+		}
+		return start + (bar - bars) * barLength;
+	}
+	
+	private static MidiTrack sliceTrack(MidiTrack T, NoteIndex notes, ChaseIndex state, long from, long to) {
+		
+		ArrayList<MidiEvent> events = new ArrayList<MidiEvent>();
+		
+		state.chase(from, events);
+		
+		// Notes started earlier and sounding at the start are struck again
+		int[] pending = new int[16 * 128];
+		for(int note : notes.getNotesAt(from)) {
+			if(notes.getStart(note) < from) {
+				events.add(new NoteOn(0, notes.getChannel(note), notes.getPitch(note), notes.getVelocity(note)));
+				pending[(notes.getChannel(note) << 7) | notes.getPitch(note)]++;
+			}
+		}
+		
+		for(MidiEvent E : T.getEvents(from, to)) {
+			
+			if(E.getTick() == from && isChased(E)) {
+				continue;
+			}
+			if(E.getClass().equals(EndOfTrack.class)) {
+				continue;
+			}
+			
+			int key = -1;
+			boolean noteOff = false;
+			if(E instanceof NoteOn) {
+				NoteOn on = (NoteOn)E;
+				key = (on.getChannel() << 7) | (on.getNoteValue() & 0x7F);
+				noteOff = on.getVelocity() == 0;
+			}
+			else if(E instanceof NoteOff) {
+				NoteOff off = (NoteOff)E;
+				key = (off.getChannel() << 7) | (off.getNoteValue() & 0x7F);
+				noteOff = true;
+			}
+			
+			if(noteOff) {
+				// Ends a note that stopped before the slice
+				if(pending[key] == 0) {
+					continue;
+				}
+				pending[key]--;
+			}
+			else if(key >= 0) {
+				pending[key]++;
+			}
+			
+			events.add(E.copy(E.getTick() - from));
+		}
+		
+		// Notes still sounding at the end are ended there
+		long end = to - from;
+		for(int key = 0; key < pending.length; key++) {
+			for(int i = 0; i < pending[key]; i++) {
+				events.add(new NoteOn(end, key >> 7, key & 0x7F, 0));
+			}
+		}
+		events.add(new EndOfTrack(end, 0));
+		
+		MidiTrack slice = new MidiTrack();
+		slice.replaceEvents(events);
+		return slice;
+	}
+	
+	private static boolean isChased(MidiEvent E) {
+		return getSlot(E) >= 0;
+	}
+	
+	// Slot of a chased event in a ChaseIndex, in the order the state is
+	// added, or -1 if the event is not chased
+	private static int getSlot(MidiEvent E) {
+		if(E instanceof ChannelEvent) {
+			ChannelEvent ce = (ChannelEvent)E;
+			int base = ce.getChannel() * CHANNEL_SLOTS;
+			switch(ce.getType()) {
+			case ChannelEvent.PROGRAM_CHANGE:
+				return base + 2;
+			case ChannelEvent.PITCH_BEND:
+				return base + 3;
+			case ChannelEvent.CONTROLLER:
+				int number = ((Controller)E).getControllerType() & 0x7F;
+				if(number == 0 || number == 32) {
+					return base + (number == 0 ? 0 : 1);
+				}
+				if(number >= 120 || number == 6 || number == 38 || (number >= 96 && number <= 101)) {
+					return -1;
+				}
+				return base + 4 + number;
+			}
+			return -1;
+		}
+		if(E instanceof MetaEvent) {
+			int type = ((MetaEvent)E).getType();
+			for(int i = 0; i < CHASED_META.length; i++) {
+				if(type == CHASED_META[i]) {
+					return 16 * CHANNEL_SLOTS + i;
+				}
+			}
+		}
+		return -1;
+	}
+	// Lists of the chased events of a track by channel and kind, each in
+	// track order, built in one pass over the track
+	private static class ChaseIndex {
+		
+		private ArrayList<ArrayList<MidiEvent>> mSlots;
+		
+		public ChaseIndex(MidiTrack T) {
+			
+			int count = 16 * CHANNEL_SLOTS + CHASED_META.length;
+			mSlots = new ArrayList<ArrayList<MidiEvent>>(count);
+			for(int i = 0; i < count; i++) {
+				mSlots.add(null);
+			}
+			
+			for(MidiEvent E : T.getEvents()) {
+				int slot = getSlot(E);
+				if(slot < 0) {
+					continue;
+				}
+				ArrayList<MidiEvent> list = mSlots.get(slot);
+				if(list == null) {
+					list = new ArrayList<MidiEvent>();
+					mSlots.set(slot, list);
+				}
+				list.add(E);
+			}
+		}
+		
+		// Adds copies at tick 0 of the state events in effect at the given
+		// tick: by channel the bank, program, pitch bend and other
+		// controllers in ascending order, then the meta events
+		public void chase(long tick, ArrayList<MidiEvent> events) {
+			for(ArrayList<MidiEvent> list : mSlots) {
+				if(list == null) {
+					continue;
+				}
+				int i = upperBound(list, tick);
+				if(i > 0) {
+					events.add(list.get(i - 1).copy(0));
+				}
+			}
+		}
+	}
+	
+	// Index of the first event with a tick greater than the given tick
+	private static int upperBound(List<MidiEvent> events, long tick) {
+		int lo = 0, hi = events.size();
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(events.get(mid).getTick() <= tick) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
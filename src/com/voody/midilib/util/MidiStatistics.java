@@ -0,0 +1,577 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.ChannelEvent;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.NoteOff;
+import com.voody.midilib.event.NoteOn;
+import com.voody.midilib.event.ProgramChange;
+import com.voody.midilib.event.meta.EndOfTrack;
+import com.voody.midilib.event.meta.Tempo;
+
+/**
+ * Gathers features of a file in a single pass over its events, kept in
+ * primitive arrays: pitch and velocity histograms per channel, note count
+ * and density, polyphony over time, program usage and the tempo range.
+ *
+ * Events are fed with add(), one track or stream at a time in tick order,
+ * with endTrack() after each. As a MidiEventListener it collects the events
+ * of a MidiProcessor. Collectors with the same resolution can be merged, so
+ * tracks and files can be collected in parallel and the results combined.
+ *
+ * Polyphony is kept per beat as the sum of the ticks each note sounds in
+ * that beat, which adds up exactly across tracks.
+ */
+public class MidiStatistics implements MidiEventListener {
+	
+	private static final int KEYS = 16 * 128;
+	
+	// Notes of one key sounding at once that are tracked; more end the oldest
+	private static final int MAX_PENDING = 8;
+	
+	private int mResolution;
+	
+	private long mEventCount;
+	private long mNoteCount;
+	private long mNoteTicks;
+	private long mLength;
+	private int mChannels;
+	
+	private long[] mPitches = new long[KEYS];
+	private long[] mVelocities = new long[KEYS];
+	private long[] mProgramChanges = new long[KEYS];
+	private long[] mProgramNotes = new long[128];
+	
+	private int mTempoCount;
+	private int mMinMpqn = Integer.MAX_VALUE;
+	private int mMaxMpqn;
+	
+	private long[] mCoverage = new long[64];
+	private int mMaxPolyphony;
+	
+	// State of the track being collected
+	private long[] mPendingStarts = new long[KEYS * MAX_PENDING];
+	private int[] mPendingFirst = new int[KEYS];
+	private int[] mPendingCount = new int[KEYS];
+	private int mSounding;
+	private int[] mPrograms = new int[16];
+	private long mLastTick;
+	
+	public MidiStatistics(int resolution) {
+		mResolution = resolution > 0 ? resolution : MidiFile.DEFAULT_RESOLUTION;
+	}
+	
+	public static MidiStatistics collect(MidiTrack track, int resolution) {
+		MidiStatistics stats = new MidiStatistics(resolution);
+		for(MidiEvent E : track.getEvents()) {
+			stats.add(E);
+		}
+		stats.endTrack();
+		return stats;
+	}
+	
+	/**
+	 * Collects the tracks of the file in parallel and merges the results.
+	 */
+	public static MidiStatistics collect(MidiFile file) {
+		
+		final ArrayList<MidiTrack> tracks = file.getTracks();
+		final int resolution = file.getResolution();
+		final MidiStatistics[] parts = new MidiStatistics[tracks.size()];
+		
+		Parallel.forEach(tracks.size(), new Parallel.Task() {
+			public void run(int index) {
+				parts[index] = collect(tracks.get(index), resolution);
+			}
+		});
+		
+		MidiStatistics stats = new MidiStatistics(resolution);
+		for(MidiStatistics part : parts) {
+			stats.merge(part);
+		}
+		return stats;
+	}
+	
+	/**
+	 * Collects a file as it is read, without building its tracks. Each track
+	 * is read up to the length in its header; a file or track that ends
+	 * early throws an IOException.
+	 */
+	public static MidiStatistics collect(InputStream rawIn) throws IOException {
+		
+		BufferedInputStream in = new BufferedInputStream(rawIn);
+		
+		byte[] buffer = new byte[MidiFile.HEADER_SIZE];
+		readFully(in, buffer, 0, buffer.length);
+		if(!MidiUtil.bytesEqual(buffer, MidiFile.IDENTIFIER, 0, 4)) {
+			throw new IOException("File identifier not MThd");
+		}
+		int trackCount = MidiUtil.bytesToInt(buffer, 10, 2);
+		MidiStatistics stats = new MidiStatistics(MidiUtil.bytesToInt(buffer, 12, 2));
+		
+		for(int t = 0; t < trackCount; t++) {
+			
+			readFully(in, buffer, 0, 8);
+			if(!MidiUtil.bytesEqual(buffer, MidiTrack.IDENTIFIER, 0, 4)) {
+				throw new IOException("Track identifier did not match MTrk");
+			}
+			TrackInput track = new TrackInput(in, MidiUtil.bytesToInt(buffer, 4, 4) & 0xFFFFFFFFL);
+			
+			long tick = 0;
+			while(track.available() > 0) {
+				VariableLengthInt delta = new VariableLengthInt(track);
+				tick += delta.getValue();
+				
+				MidiEvent E = MidiEvent.parseEvent(tick, delta.getValue(), track);
+				if(E == null) {
+					continue;
+				}
+				// Left out like the tracks read by MidiTrack, which drop it
+				if(E.getClass().equals(EndOfTrack.class)) {
+					break;
+				}
+				stats.add(E);
+			}
+			track.skipRest();
+			stats.endTrack();
+		}
+		return stats;
+	}
+	
+	private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			int n = in.read(b, off, len);
+			if(n < 0) {
+				throw new EOFException("Unexpected end of file");
+			}
+			off += n;
+			len -= n;
+		}
+	}
+	
+	// The data of one track: reads past its length, or past the end of the
+	// file, throw rather than return -1, so a cut short event is not parsed
+	// from the next track or from nothing
+	private static class TrackInput extends InputStream {
+		
+		private InputStream mIn;
+		private long mRemaining;
+		private long mMarked;
+		
+		public TrackInput(InputStream in, long length) {
+			mIn = in;
+			mRemaining = length;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if(mRemaining == 0) {
+				throw new EOFException("Event runs past the end of its track");
+			}
+			int b = mIn.read();
+			if(b < 0) {
+				throw new EOFException("Unexpected end of file");
+			}
+			mRemaining--;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len > mRemaining) {
+				throw new EOFException("Event runs past the end of its track");
+			}
+			readFully(mIn, b, off, len);
+			mRemaining -= len;
+			return len;
+		}
+		
+		// The event parsers mark and reset to handle running status
+		@Override
+		public boolean markSupported() {
+			return mIn.markSupported();
+		}
+		
+		@Override
+		public void mark(int limit) {
+			mIn.mark(limit);
+			mMarked = mRemaining;
+		}
+		
+		@Override
+		public void reset() throws IOException {
+			mIn.reset();
+			mRemaining = mMarked;
+		}
+		
+		@Override
+		public int available() {
+			return (int)Math.min(mRemaining, Integer.MAX_VALUE);
+		}
+		
+		// Moves past whatever follows the EndOfTrack
+		public void skipRest() throws IOException {
+			while(mRemaining > 0) {
+				long n = mIn.skip(mRemaining);
+				if(n <= 0) {
+					read();
+					continue;
+				}
+				mRemaining -= n;
+			}
+		}
+	}
+	
+	/**
+	 * Reads and collects the files in parallel and merges the results.
+	 * Files that cannot be read or parsed are left out.
+	 */
+	public static MidiStatistics collectAll(final List<File> files, int resolution) {
+		
+		final MidiStatistics[] parts = new MidiStatistics[files.size()];
+		Parallel.forEach(files.size(), new Parallel.Task() {
+			public void run(int index) {
+				try {
+					FileInputStream in = new FileInputStream(files.get(index));
+					try {
+						parts[index] = collect(in);
+					} finally {
+						in.close();
+					}
+				} catch(IOException e) {
+					System.err.println("Error: Cannot read " + files.get(index) + ": " + e.getMessage());
+				} catch(RuntimeException e) {
+					// A malformed file can fail inside the event parsers
+					System.err.println("Error: Cannot parse " + files.get(index) + ": " + e);
+				}
+			}
+		});
+		
+		MidiStatistics stats = new MidiStatistics(resolution);
+		for(MidiStatistics part : parts) {
+			if(part == null) {
+				continue;
+			}
+			if(part.mResolution != resolution) {
+				part.rescale(resolution);
+			}
+			stats.merge(part);
+		}
+		return stats;
+	}
+	
+	public void add(MidiEvent E) {
+		
+		mEventCount++;
+		long tick = E.getTick();
+		mLastTick = Math.max(mLastTick, tick);
+		mLength = Math.max(mLength, tick);
+		
+		if(E instanceof Tempo) {
+			int mpqn = ((Tempo)E).getMpqn();
+			mTempoCount++;
+			mMinMpqn = Math.min(mMinMpqn, mpqn);
+			mMaxMpqn = Math.max(mMaxMpqn, mpqn);
+			return;
+		}
+		if(!(E instanceof ChannelEvent)) {
+			return;
+		}
+		
+		ChannelEvent ce = (ChannelEvent)E;
+		int channel = ce.getChannel();
+		mChannels |= 1 << channel;
+		
+		if(E instanceof ProgramChange) {
+			int program = ((ProgramChange)E).getProgramNumber() & 0x7F;
+			mPrograms[channel] = program;
+			mProgramChanges[(channel << 7) | program]++;
+			return;
+		}
+		
+		int key;
+		int velocity;
+		if(E instanceof NoteOn) {
+			NoteOn on = (NoteOn)E;
+			key = (channel << 7) | (on.getNoteValue() & 0x7F);
+			velocity = on.getVelocity() & 0x7F;
+		}
+		else if(E instanceof NoteOff) {
+			key = (channel << 7) | (((NoteOff)E).getNoteValue() & 0x7F);
+			velocity = 0;
+		}
+		else {
+			return;
+		}
+		
+		if(velocity > 0) {
+			mNoteCount++;
+			mPitches[key]++;
+			mVelocities[(channel << 7) | velocity]++;
+			mProgramNotes[mPrograms[channel]]++;
+			
+			if(mPendingCount[key] == MAX_PENDING) {
+				endNote(key, tick);
+			}
+			int slot = (mPendingFirst[key] + mPendingCount[key]) % MAX_PENDING;
+			mPendingStarts[key * MAX_PENDING + slot] = tick;
+			mPendingCount[key]++;
+			mSounding++;
+			mMaxPolyphony = Math.max(mMaxPolyphony, mSounding);
+		}
+		else if(mPendingCount[key] > 0) {
+			endNote(key, tick);
+		}
+	}
+	
+	/**
+	 * Ends the notes still sounding at the last event and resets the state
+	 * kept while collecting a track, ready for the next one.
+	 */
+	public void endTrack() {
+		for(int key = 0; key < KEYS; key++) {
+			while(mPendingCount[key] > 0) {
+				endNote(key, mLastTick);
+			}
+		}
+		mSounding = 0;
+		mLastTick = 0;
+		for(int c = 0; c < 16; c++) {
+			mPrograms[c] = 0;
+		}
+	}
+	
+	/**
+	 * Adds the features of other, which must have the same resolution, to
+	 * these. The maximum polyphony becomes the larger of the two.
+	 */
+	public void merge(MidiStatistics other) {
+		
+		if(other.mResolution != mResolution) {
+			System.err.println("Error: Cannot merge statistics of different resolutions.");
+			return;
+		}
+		
+		mEventCount += other.mEventCount;
+		mNoteCount += other.mNoteCount;
+		mNoteTicks += other.mNoteTicks;
+		mLength = Math.max(mLength, other.mLength);
+		mChannels |= other.mChannels;
+		
+		addAll(mPitches, other.mPitches);
+		addAll(mVelocities, other.mVelocities);
+		addAll(mProgramChanges, other.mProgramChanges);
+		addAll(mProgramNotes, other.mProgramNotes);
+		
+		mTempoCount += other.mTempoCount;
+		mMinMpqn = Math.min(mMinMpqn, other.mMinMpqn);
+		mMaxMpqn = Math.max(mMaxMpqn, other.mMaxMpqn);
+		
+		ensureBuckets(other.mCoverage.length);
+		addAll(mCoverage, other.mCoverage);
+		mMaxPolyphony = Math.max(mMaxPolyphony, other.mMaxPolyphony);
+	}
+	
+	public int getResolution() {
+		return mResolution;
+	}
+	public long getEventCount() {
+		return mEventCount;
+	}
+	public long getNoteCount() {
+		return mNoteCount;
+	}
+	public long getLengthInTicks() {
+		return mLength;
+	}
+	
+	/**
+	 * Bit c is set if channel c is used.
+	 */
+	public int getChannelUsage() {
+		return mChannels;
+	}
+	
+	/**
+	 * Note ons of each pitch on the channel.
+	 */
+	public long[] getPitchHistogram(int channel) {
+		return slice(mPitches, channel);
+	}
+	
+	/**
+	 * Note ons of each pitch on all channels.
+	 */
+	public long[] getPitchHistogram() {
+		return sumChannels(mPitches);
+	}
+	
+	public long[] getVelocityHistogram(int channel) {
+		return slice(mVelocities, channel);
+	}
+	public long[] getVelocityHistogram() {
+		return sumChannels(mVelocities);
+	}
+	
+	/**
+	 * Notes started per beat, over the length of the file.
+	 */
+	public double getNoteDensity() {
+		return mLength > 0 ? mNoteCount * (double)mResolution / mLength : 0;
+	}
+	
+	public double getAverageNoteLength() {
+		return mNoteCount > 0 ? mNoteTicks / (double)mNoteCount : 0;
+	}
+	
+	/**
+	 * The average number of notes sounding in each beat.
+	 */
+	public double[] getPolyphony() {
+		int beats = (int)(mLength / mResolution) + 1;
+		double[] polyphony = new double[beats];
+		for(int b = 0; b < beats && b < mCoverage.length; b++) {
+			polyphony[b] = mCoverage[b] / (double)mResolution;
+		}
+		return polyphony;
+	}
+	
+	public double getAveragePolyphony() {
+		return mLength > 0 ? mNoteTicks / (double)mLength : 0;
+	}
+	
+	/**
+	 * The most notes sounding at once within a single track or stream.
+	 */
+	public int getMaxPolyphony() {
+		return mMaxPolyphony;
+	}
+	
+	public long getProgramChangeCount(int channel, int program) {
+		return mProgramChanges[((channel & 0x0F) << 7) | (program & 0x7F)];
+	}
+	
+	/**
+	 * Notes played with each program selected, on any channel. Notes before
+	 * a channel's first program change count towards program 0.
+	 */
+	public long[] getProgramNoteCounts() {
+		return mProgramNotes.clone();
+	}
+	
+	public int getTempoCount() {
+		return mTempoCount;
+	}
+	
+	/**
+	 * The slowest tempo, or the default tempo if there are no tempo events.
+	 */
+	public float getMinBpm() {
+		return mTempoCount > 0 ? 60000000f / mMaxMpqn : Tempo.DEFAULT_BPM;
+	}
+	public float getMaxBpm() {
+		return mTempoCount > 0 ? 60000000f / mMinMpqn : Tempo.DEFAULT_BPM;
+	}
+	
+	public void onStart(boolean fromBeginning) {
+	}
+	
+	public void onEvent(MidiEvent event, long ms) {
+		add(event);
+	}
+	
+	public void onStop(boolean finished) {
+		endTrack();
+	}
+	
+	private void endNote(int key, long tick) {
+		
+		int slot = key * MAX_PENDING + mPendingFirst[key];
+		long start = mPendingStarts[slot];
+		mPendingFirst[key] = (mPendingFirst[key] + 1) % MAX_PENDING;
+		mPendingCount[key]--;
+		mSounding--;
+		
+		mNoteTicks += tick - start;
+		
+		// Spread the note's ticks over the beats it covers
+		long beat = start / mResolution;
+		ensureBuckets((int)(tick / mResolution) + 1);
+		while(start < tick) {
+			long end = Math.min(tick, (beat + 1) * mResolution);
+			mCoverage[(int)beat] += end - start;
+			start = end;
+			beat++;
+		}
+	}
+	
+	private void ensureBuckets(int count) {
+		if(count <= mCoverage.length) {
+			return;
+		}
+		long[] grown = new long[Math.max(count, mCoverage.length * 2)];
+		System.arraycopy(mCoverage, 0, grown, 0, mCoverage.length);
+		mCoverage = grown;
+	}
+	
+	// Moves the tick based features to another resolution, for merging
+	private void rescale(int resolution) {
+		
+		double scale = resolution / (double)mResolution;
+		mLength = Math.round(mLength * scale);
+		mNoteTicks = Math.round(mNoteTicks * scale);
+		
+		long[] coverage = new long[mCoverage.length];
+		for(int b = 0; b < mCoverage.length; b++) {
+			coverage[b] = Math.round(mCoverage[b] * scale);
+		}
+		mCoverage = coverage;
+		mResolution = resolution;
+	}
+	
+	private static void addAll(long[] to, long[] from) {
+		for(int i = 0; i < from.length; i++) {
+			to[i] += from[i];
+		}
+	}
+	
+	private static long[] slice(long[] values, int channel) {
+		long[] result = new long[128];
+		System.arraycopy(values, (channel & 0x0F) << 7, result, 0, 128);
+		return result;
+	}
+	
+	private static long[] sumChannels(long[] values) {
+		long[] result = new long[128];
+		for(int i = 0; i < KEYS; i++) {
+			result[i & 0x7F] += values[i];
+		}
+		return result;
+	}
+}
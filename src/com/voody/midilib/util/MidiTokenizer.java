@@ -0,0 +1,613 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.io.File;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.NoteOn;
+import com.voody.midilib.event.meta.MetaEvent;
+import com.voody.midilib.event.meta.TimeSignature;
+
+/**
+ * Turns the notes of a file into a sequence of integer tokens for sequence
+ * models, and token sequences back into files. Note times are quantized to
+ * a grid of getPositionsPerQuarter() steps per quarter note, taken from the
+ * file's resolution.
+ *
+ * REMI sequences mark each bar with a BAR token, followed by a
+ * TIME_SIGNATURE token in the first bar and wherever the meter changes, so
+ * bar lengths follow the file's TimeSignature events. Each note is then a
+ * POSITION within the bar (left out when unchanged), PITCH, VELOCITY and
+ * DURATION token. TIME_SHIFT sequences hold NOTE_ON and NOTE_OFF tokens
+ * separated by TIME_SHIFTs of up to getMaxShift() steps, with a VELOCITY
+ * token before a NOTE_ON whenever the velocity changes.
+ *
+ * Only notes are kept: channels, programs, controllers and tempo are left
+ * out, and files are rebuilt with a single track on channel 0. Velocities
+ * are quantized to getVelocityBins() levels. Once on the grid, a note ends
+ * where the next note of its pitch starts, and of notes of a pitch starting
+ * together only the loudest is kept, so tokenizing a rebuilt file gives the
+ * same tokens.
+ */
+public class MidiTokenizer {
+	
+	public static final int SCHEME_REMI = 0;
+	public static final int SCHEME_TIME_SHIFT = 1;
+	
+	// Token types
+	public static final int BAR = 0;
+	public static final int TIME_SIGNATURE = 1;
+	public static final int POSITION = 2;
+	public static final int PITCH = 3;
+	public static final int VELOCITY = 4;
+	public static final int DURATION = 5;
+	public static final int NOTE_ON = 6;
+	public static final int NOTE_OFF = 7;
+	public static final int TIME_SHIFT = 8;
+	private static final int TYPES = 9;
+	
+	// Longest bar with a position of its own, in quarter notes
+	private static final int MAX_BAR_QUARTERS = 16;
+	// Time signatures cover numerators 1 to 16 and denominators 1 to 16
+	private static final int NUMERATORS = 16;
+	private static final int DENOMINATORS = 5;
+	
+	private int mScheme;
+	private int mPositionsPerQuarter = 4;
+	private int mVelocityBins = 32;
+	private int mMaxDuration = 64;
+	private int mMaxShift = 16;
+	private int mResolution = MidiFile.DEFAULT_RESOLUTION;
+	
+	private int[] mBase = new int[TYPES];
+	private int[] mSize = new int[TYPES];
+	private int[] mFirstValue = new int[TYPES];
+	private int mVocabularySize;
+	
+	public MidiTokenizer(int scheme) {
+		mScheme = scheme == SCHEME_TIME_SHIFT ? SCHEME_TIME_SHIFT : SCHEME_REMI;
+		layout();
+	}
+	
+	public int getScheme() {
+		return mScheme;
+	}
+	
+	public void setPositionsPerQuarter(int positions) {
+		if(positions <= 0) {
+			System.err.println("Error: Positions per quarter note must be positive.");
+			return;
+		}
+		mPositionsPerQuarter = positions;
+		layout();
+	}
+	public int getPositionsPerQuarter() {
+		return mPositionsPerQuarter;
+	}
+	
+	public void setVelocityBins(int bins) {
+		if(bins <= 0 || bins > 127) {
+			System.err.println("Error: Velocity bins must be between 1 and 127.");
+			return;
+		}
+		mVelocityBins = bins;
+		layout();
+	}
+	public int getVelocityBins() {
+		return mVelocityBins;
+	}
+	
+	/**
+	 * The longest DURATION token, in grid steps. Longer notes are cut short.
+	 */
+	public void setMaxDuration(int steps) {
+		if(steps <= 0) {
+			System.err.println("Error: Maximum duration must be positive.");
+			return;
+		}
+		mMaxDuration = steps;
+		layout();
+	}
+	public int getMaxDuration() {
+		return mMaxDuration;
+	}
+	
+	/**
+	 * The longest TIME_SHIFT token, in grid steps. Longer gaps take several.
+	 */
+	public void setMaxShift(int steps) {
+		if(steps <= 0) {
+			System.err.println("Error: Maximum time shift must be positive.");
+			return;
+		}
+		mMaxShift = steps;
+		layout();
+	}
+	public int getMaxShift() {
+		return mMaxShift;
+	}
+	
+	/**
+	 * The resolution of the files rebuilt from tokens.
+	 */
+	public void setResolution(int resolution) {
+		if(resolution <= 0) {
+			System.err.println("Error: Resolution must be positive.");
+			return;
+		}
+		mResolution = resolution;
+	}
+	public int getResolution() {
+		return mResolution;
+	}
+	
+	public int getVocabularySize() {
+		return mVocabularySize;
+	}
+	
+	/**
+	 * The token of the given type and value: 0 for BAR, the numerator and
+	 * denominator encoded by getTimeSignatureValue() for TIME_SIGNATURE, the
+	 * pitch, the velocity bin, or a number of grid steps otherwise. Returns
+	 * -1 if the scheme has no such token.
+	 */
+	public int getToken(int type, int value) {
+		int index = value - mFirstValue[type];
+		if(index < 0 || index >= mSize[type]) {
+			return -1;
+		}
+		return mBase[type] + index;
+	}
+	
+	public int getTokenType(int token) {
+		for(int type = 0; type < TYPES; type++) {
+			if(token >= mBase[type] && token < mBase[type] + mSize[type]) {
+				return type;
+			}
+		}
+		return -1;
+	}
+	
+	public int getTokenValue(int token) {
+		int type = getTokenType(token);
+		return type < 0 ? -1 : token - mBase[type] + mFirstValue[type];
+	}
+	
+	public static int getTimeSignatureValue(int numerator, int denominator) {
+		int power = 0;
+		while((1 << power) < denominator && power < DENOMINATORS - 1) {
+			power++;
+		}
+		numerator = Math.max(1, Math.min(NUMERATORS, numerator));
+		return (numerator - 1) * DENOMINATORS + power;
+	}
+	
+	public int getVelocityBin(int velocity) {
+		return Math.max(0, Math.min(126, velocity - 1)) * mVelocityBins / 127;
+	}
+	
+	/**
+	 * The velocity in the middle of the bin.
+	 */
+	public int getBinVelocity(int bin) {
+		return Math.min(127, (2 * bin + 1) * 127 / (2 * mVelocityBins) + 1);
+	}
+	
+	/**
+	 * Writes the tokens of the file to out from offset on and returns how
+	 * many there are. Tokens that do not fit are counted but not written, so
+	 * a result larger than the space left means the buffer was too small.
+	 */
+	public int tokenize(MidiFile file, int[] out, int offset) {
+		
+		NoteIndex notes = file.getCache().getNoteIndex();
+		int resolution = file.getResolution() > 0 ? file.getResolution() : MidiFile.DEFAULT_RESOLUTION;
+		int n = notes.getNoteCount();
+		
+		long[] start = new long[n];
+		long[] end = new long[n];
+		int[] order = new int[n];
+		for(int i = 0; i < n; i++) {
+			start[i] = toGrid(notes.getStart(i), resolution);
+			end[i] = Math.max(start[i] + 1, toGrid(notes.getEnd(i), resolution));
+			order[i] = i;
+		}
+		
+		// A note sounding again ends the one before it, as it would when
+		// played. Ids of a pitch are in start order.
+		for(int pitch = 0; pitch < 128; pitch++) {
+			long following = Long.MAX_VALUE;
+			long current = Long.MAX_VALUE;
+			for(int i = notes.getFirstNote(pitch + 1) - 1; i >= notes.getFirstNote(pitch); i--) {
+				if(start[i] != current) {
+					following = current;
+					current = start[i];
+				}
+				end[i] = Math.min(end[i], following);
+			}
+		}
+		
+		// Notes by start, pitch, loudest first, then end, so that a file
+		// rebuilt from the tokens gives the same tokens again
+		int[] tmp = new int[2 * n];
+		long[] key = new long[n];
+		NoteIndex.sortByKey(order, 0, n, end, tmp);
+		for(int i = 0; i < n; i++) {
+			key[i] = 127 - notes.getVelocity(i);
+		}
+		NoteIndex.sortByKey(order, 0, n, key, tmp);
+		for(int i = 0; i < n; i++) {
+			key[i] = notes.getPitch(i);
+		}
+		NoteIndex.sortByKey(order, 0, n, key, tmp);
+		NoteIndex.sortByKey(order, 0, n, start, tmp);
+		
+		// A file cannot hold two notes of a pitch starting together, so
+		// only the loudest is kept
+		int kept = 0;
+		for(int k = 0; k < n; k++) {
+			int note = order[k];
+			if(kept > 0 && start[order[kept - 1]] == start[note] && notes.getPitch(order[kept - 1]) == notes.getPitch(note)) {
+				continue;
+			}
+			order[kept++] = note;
+		}
+		n = kept;
+		
+		TokenWriter writer = new TokenWriter(out, offset);
+		if(mScheme == SCHEME_REMI) {
+			writeRemi(file, notes, start, end, order, n, writer, resolution);
+		}
+		else {
+			writeTimeShifts(notes, start, end, order, n, tmp, writer);
+		}
+		return writer.mCount;
+	}
+	
+	/**
+	 * The tokens of the file in a new array.
+	 */
+	public int[] tokenize(MidiFile file) {
+		int[] tokens = new int[1024];
+		int count = tokenize(file, tokens, 0);
+		if(count > tokens.length) {
+			tokens = new int[count];
+			tokenize(file, tokens, 0);
+		}
+		return trim(tokens, count);
+	}
+	
+	/**
+	 * Reads and tokenizes the files in parallel. Files that cannot be read
+	 * get null.
+	 */
+	public int[][] tokenizeAll(final List<File> files) {
+		
+		final int[][] result = new int[files.size()][];
+		final ThreadLocal<int[]> buffers = new ThreadLocal<int[]>() {
+			protected int[] initialValue() {
+				return new int[1 << 16];
+			}
+		};
+		
+		Parallel.forEach(files.size(), new Parallel.Task() {
+			public void run(int index) {
+				MidiFile file;
+				try {
+					file = new MidiFile(files.get(index));
+				} catch(Exception e) {
+					System.err.println("Error: Cannot tokenize " + files.get(index) + ": " + e);
+					return;
+				}
+				
+				int[] buffer = buffers.get();
+				int count = tokenize(file, buffer, 0);
+				if(count > buffer.length) {
+					buffer = new int[Math.max(count, buffer.length * 2)];
+					buffers.set(buffer);
+					tokenize(file, buffer, 0);
+				}
+				result[index] = trim(buffer, count);
+			}
+		});
+		return result;
+	}
+	
+	public MidiFile detokenize(int[] tokens, int offset, int count) {
+		Decoder decoder = createDecoder();
+		decoder.add(tokens, offset, count);
+		return decoder.finish();
+	}
+	
+	/**
+	 * A decoder accepting a sequence a few tokens at a time.
+	 */
+	public Decoder createDecoder() {
+		return new Decoder();
+	}
+	
+	/**
+	 * Rebuilds a file from tokens fed to it in order. Tokens outside the
+	 * vocabulary, or out of place, such as a DURATION without a PITCH, are
+	 * ignored.
+	 */
+	public class Decoder {
+		
+		private ArrayList<MidiEvent> mEvents = new ArrayList<MidiEvent>();
+		
+		private long mTime;
+		private long mBarStart = -1;
+		private long mBarLength;
+		private int mPitch = -1;
+		private int mVelocity = 64;
+		
+		private Decoder() {
+			mBarLength = getBarLength(4, 4);
+		}
+		
+		public void add(int[] tokens, int offset, int count) {
+			for(int i = offset; i < offset + count; i++) {
+				add(tokens[i]);
+			}
+		}
+		
+		public void add(int token) {
+			
+			int type = getTokenType(token);
+			if(type < 0) {
+				return;
+			}
+			int value = token - mBase[type] + mFirstValue[type];
+			
+			switch(type) {
+				case BAR:
+					mBarStart = mBarStart < 0 ? 0 : mBarStart + mBarLength;
+					mTime = mBarStart;
+					mPitch = -1;
+					break;
+				case TIME_SIGNATURE:
+					if(mBarStart < 0) {
+						break;
+					}
+					int num = value / DENOMINATORS + 1;
+					int den = 1 << (value % DENOMINATORS);
+					mBarLength = getBarLength(num, den);
+					mEvents.add(new TimeSignature(toTicks(mBarStart), 0, num, den, TimeSignature.DEFAULT_METER, TimeSignature.DEFAULT_DIVISION));
+					break;
+				case POSITION:
+					if(mBarStart >= 0) {
+						mTime = mBarStart + value;
+					}
+					break;
+				case PITCH:
+					mPitch = value;
+					break;
+				case VELOCITY:
+					mVelocity = getBinVelocity(value);
+					break;
+				case DURATION:
+					if(mPitch < 0 || mBarStart < 0) {
+						break;
+					}
+					mEvents.add(new NoteOn(toTicks(mTime), 0, mPitch, mVelocity));
+					mEvents.add(new NoteOn(toTicks(mTime + value), 0, mPitch, 0));
+					mPitch = -1;
+					break;
+				case NOTE_ON:
+					mEvents.add(new NoteOn(toTicks(mTime), 0, value, mVelocity));
+					break;
+				case NOTE_OFF:
+					mEvents.add(new NoteOn(toTicks(mTime), 0, value, 0));
+					break;
+				case TIME_SHIFT:
+					mTime += value;
+					break;
+			}
+		}
+		
+		/**
+		 * The file of the tokens added so far.
+		 */
+		public MidiFile finish() {
+			MidiTrack track = new MidiTrack();
+			track.replaceEvents(mEvents);
+			
+			ArrayList<MidiTrack> tracks = new ArrayList<MidiTrack>();
+			tracks.add(track);
+			return new MidiFile(mResolution, tracks);
+		}
+	}
+	
+	private void writeRemi(MidiFile file, NoteIndex notes, long[] start, long[] end, int[] order, int n, TokenWriter writer, int resolution) {
+		
+		// Time signatures of all tracks, in time order
+		ArrayList<MidiEvent> signatures = new ArrayList<MidiEvent>();
+		for(MidiTrack T : file.getTracks()) {
+			signatures.addAll(T.getMetaEvents(MetaEvent.TIME_SIGNATURE));
+		}
+		Collections.sort(signatures);
+		
+		int numerator = 4;
+		int denominator = 4;
+		int nextSignature = 0;
+		long barStart = 0;
+		long barLength = 0;
+		long position = -1;
+		
+		for(int k = 0; k < n; k++) {
+			int note = order[k];
+			
+			// Every bar up to the note's gets a BAR, empty ones included
+			while(barLength == 0 || start[note] >= barStart + barLength) {
+				barStart += barLength;
+				boolean changed = barLength == 0;
+				
+				// A meter takes effect from the first bar starting at or after it
+				while(nextSignature < signatures.size() && toGrid(signatures.get(nextSignature).getTick(), resolution) <= barStart) {
+					TimeSignature ts = (TimeSignature)signatures.get(nextSignature++);
+					changed |= ts.getNumerator() != numerator || ts.getRealDenominator() != denominator;
+					numerator = ts.getNumerator();
+					denominator = ts.getRealDenominator();
+				}
+				
+				barLength = getBarLength(numerator, denominator);
+				writer.write(mBase[BAR]);
+				if(changed) {
+					writer.write(getToken(TIME_SIGNATURE, getTimeSignatureValue(numerator, denominator)));
+				}
+				position = -1;
+			}
+			
+			long p = Math.min(start[note] - barStart, mSize[POSITION] - 1);
+			if(p != position) {
+				writer.write(mBase[POSITION] + (int)p);
+				position = p;
+			}
+			
+			writer.write(mBase[PITCH] + notes.getPitch(note));
+			writer.write(mBase[VELOCITY] + getVelocityBin(notes.getVelocity(note)));
+			writer.write(getToken(DURATION, (int)Math.min(end[note] - start[note], mMaxDuration)));
+		}
+	}
+	
+	private void writeTimeShifts(NoteIndex notes, long[] start, long[] end, int[] noteOrder, int count, int[] tmp, TokenWriter writer) {
+		
+		// Event e < n starts note e and event n + e ends it. Ends sort before
+		// starts at the same step so a repeated note is released first.
+		int n = start.length;
+		long[] key = new long[2 * n];
+		int[] order = new int[2 * count];
+		for(int i = 0; i < n; i++) {
+			key[i] = start[i] * 2 + 1;
+			key[n + i] = end[i] * 2;
+		}
+		for(int k = 0; k < count; k++) {
+			order[k] = noteOrder[k];
+			order[count + k] = n + noteOrder[k];
+		}
+		NoteIndex.sortByKey(order, 0, 2 * count, key, tmp);
+		
+		long time = 0;
+		int velocityBin = -1;
+		
+		for(int k = 0; k < order.length; k++) {
+			int e = order[k];
+			int note = e < n ? e : e - n;
+			
+			long shift = key[e] / 2 - time;
+			while(shift > 0) {
+				int step = (int)Math.min(shift, mMaxShift);
+				writer.write(getToken(TIME_SHIFT, step));
+				shift -= step;
+			}
+			time = key[e] / 2;
+			
+			if(e < n) {
+				int bin = getVelocityBin(notes.getVelocity(note));
+				if(bin != velocityBin) {
+					writer.write(mBase[VELOCITY] + bin);
+					velocityBin = bin;
+				}
+				writer.write(mBase[NOTE_ON] + notes.getPitch(note));
+			}
+			else {
+				writer.write(mBase[NOTE_OFF] + notes.getPitch(note));
+			}
+		}
+	}
+	
+	private static class TokenWriter {
+		
+		private int[] mOut;
+		private int mOffset;
+		private int mCount;
+		
+		public TokenWriter(int[] out, int offset) {
+			mOut = out;
+			mOffset = offset;
+		}
+		
+		public void write(int token) {
+			if(mOffset + mCount < mOut.length) {
+				mOut[mOffset + mCount] = token;
+			}
+			mCount++;
+		}
+	}
+	
+	private void layout() {
+		
+		for(int type = 0; type < TYPES; type++) {
+			mSize[type] = 0;
+			mFirstValue[type] = 0;
+		}
+		
+		if(mScheme == SCHEME_REMI) {
+			mSize[BAR] = 1;
+			mSize[TIME_SIGNATURE] = NUMERATORS * DENOMINATORS;
+			mSize[POSITION] = mPositionsPerQuarter * MAX_BAR_QUARTERS;
+			mSize[PITCH] = 128;
+			mSize[VELOCITY] = mVelocityBins;
+			mSize[DURATION] = mMaxDuration;
+			mFirstValue[DURATION] = 1;
+		}
+		else {
+			mSize[NOTE_ON] = 128;
+			mSize[NOTE_OFF] = 128;
+			mSize[TIME_SHIFT] = mMaxShift;
+			mSize[VELOCITY] = mVelocityBins;
+			mFirstValue[TIME_SHIFT] = 1;
+		}
+		
+		// Types of the scheme in the order of the token sequence
+		int[] types = mScheme == SCHEME_REMI ?
+			new int[] { BAR, TIME_SIGNATURE, POSITION, PITCH, VELOCITY, DURATION } :
+			new int[] { NOTE_ON, NOTE_OFF, TIME_SHIFT, VELOCITY };
+		
+		int next = 0;
+		for(int type : types) {
+			mBase[type] = next;
+			next += mSize[type];
+		}
+		mVocabularySize = next;
+	}
+	
+	private long getBarLength(int numerator, int denominator) {
+		return Math.max(1, MidiUtil.scaleTicks(numerator, 4 * mPositionsPerQuarter, denominator, RoundingMode.HALF_EVEN));
+	}
+	
+	private long toGrid(long tick, int resolution) {
+		return MidiUtil.scaleTicks(tick, mPositionsPerQuarter, resolution, RoundingMode.HALF_EVEN);
+	}
+	
+	private long toTicks(long step) {
+		return MidiUtil.scaleTicks(step, mResolution, mPositionsPerQuarter, RoundingMode.HALF_EVEN);
+	}
+	
+	private static int[] trim(int[] array, int count) {
+		int[] trimmed = new int[count];
+		System.arraycopy(array, 0, trimmed, 0, count);
+		return trimmed;
+	}
+}
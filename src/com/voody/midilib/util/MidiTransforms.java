@@ -0,0 +1,299 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.math.RoundingMode;
+import java.util.ArrayList;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.ChannelEvent;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.NoteAftertouch;
+import com.voody.midilib.event.NoteOff;
+import com.voody.midilib.event.NoteOn;
+
+/**
+ * A set of edits applied to every event of a track or file in a single
+ * pass: transposing a pitch range, a velocity curve, channel remapping and
+ * scaling or offsetting time. Set up the edits wanted, then apply() them;
+ * the tracks of a file are processed in parallel.
+ *
+ * Each track is rebuilt once with MidiTrack.replaceEvents() from copies of
+ * its events, since the changed values take part in the order of the
+ * events. Notes transposed outside 0-127 are dropped, and events that end
+ * up identical, such as two notes transposed onto the same pitch and tick,
+ * are merged into one.
+ */
+public class MidiTransforms {
+	
+	private int mTranspose;
+	private int mLowPitch;
+	private int mHighPitch;
+	
+	private int[] mVelocityCurve;
+	private int[] mChannelMap;
+	
+	private long mTimeNum = 1;
+	private long mTimeDen = 1;
+	private RoundingMode mRounding = RoundingMode.HALF_EVEN;
+	private long mTimeOffset;
+	
+	/**
+	 * Moves notes and note aftertouch with a pitch from lowPitch to highPitch
+	 * by the given number of semitones. Notes moved outside 0-127 are removed.
+	 */
+	public void setTranspose(int semitones, int lowPitch, int highPitch) {
+		mTranspose = semitones;
+		mLowPitch = lowPitch;
+		mHighPitch = highPitch;
+	}
+	public void setTranspose(int semitones) {
+		setTranspose(semitones, 0, 127);
+	}
+	
+	/**
+	 * Maps the velocity v of every note on to curve[v], clamped to 1-127 so
+	 * a note on never turns into a note off. Note off velocities are kept.
+	 */
+	public void setVelocityCurve(int[] curve) {
+		if(curve == null) {
+			mVelocityCurve = null;
+			return;
+		}
+		mVelocityCurve = new int[128];
+		for(int v = 0; v < 128; v++) {
+			int mapped = v < curve.length ? curve[v] : v;
+			mVelocityCurve[v] = Math.max(1, Math.min(127, mapped));
+		}
+	}
+	
+	public void setVelocityScale(float factor) {
+		int[] curve = new int[128];
+		for(int v = 0; v < 128; v++) {
+			curve[v] = Math.round(v * factor);
+		}
+		setVelocityCurve(curve);
+	}
+	
+	/**
+	 * Moves events on channel c to channel map[c].
+	 */
+	public void setChannelMap(int[] map) {
+		if(map == null) {
+			mChannelMap = null;
+			return;
+		}
+		mChannelMap = new int[16];
+		for(int c = 0; c < 16; c++) {
+			mChannelMap[c] = c < map.length ? map[c] & 0x0F : c;
+		}
+	}
+	
+	/**
+	 * Scales ticks by num / den, as MidiFile.rescaleResolution() does. A
+	 * note is never made shorter than one tick.
+	 */
+	public void setTimeScale(long num, long den, RoundingMode mode) {
+		if(num <= 0 || den <= 0) {
+			System.err.println("Error: Time scale must be positive.");
+			return;
+		}
+		long gcd = MidiUtil.gcd(num, den);
+		mTimeNum = num / gcd;
+		mTimeDen = den / gcd;
+		mRounding = mode;
+	}
+	
+	/**
+	 * Added to every tick after scaling. Events moved before tick 0 are
+	 * placed on tick 0.
+	 */
+	public void setTimeOffset(long ticks) {
+		mTimeOffset = ticks;
+	}
+	
+	/**
+	 * Every track is transformed before any of them is replaced, so a track
+	 * that fails, such as with RoundingMode.UNNECESSARY on an inexact tick,
+	 * leaves the whole file unchanged.
+	 */
+	public void apply(MidiFile file) {
+		
+		final ArrayList<MidiTrack> tracks = file.getTracks();
+		for(MidiTrack T : tracks) {
+			if(T.isReadOnly()) {
+				System.err.println("Error: Cannot transform a snapshot track.");
+				return;
+			}
+		}
+		
+		final ArrayList<ArrayList<MidiEvent>> results = new ArrayList<ArrayList<MidiEvent>>(tracks.size());
+		for(int i = 0; i < tracks.size(); i++) {
+			results.add(null);
+		}
+		Parallel.forEach(tracks.size(), new Parallel.Task() {
+			public void run(int index) {
+				ArrayList<MidiEvent> events = transform(tracks.get(index));
+				synchronized(results) {
+					results.set(index, events);
+				}
+			}
+		});
+		
+		for(int i = 0; i < tracks.size(); i++) {
+			if(results.get(i) != null) {
+				tracks.get(i).replaceEvents(results.get(i));
+			}
+		}
+	}
+	
+	public void apply(MidiTrack track) {
+		
+		if(track.isReadOnly()) {
+			System.err.println("Error: Cannot transform a snapshot track.");
+			return;
+		}
+		
+		ArrayList<MidiEvent> events = transform(track);
+		if(events != null) {
+			track.replaceEvents(events);
+		}
+	}
+	
+	// The transformed copies of the track's events, or null if there is
+	// nothing to change
+	private ArrayList<MidiEvent> transform(MidiTrack track) {
+		
+		boolean retime = mTimeNum != mTimeDen || mTimeOffset != 0;
+		if(!retime && mTranspose == 0 && mVelocityCurve == null && mChannelMap == null) {
+			return null;
+		}
+		
+		NoteGuard guard = retime ? new NoteGuard() : null;
+		
+		ArrayList<MidiEvent> events = new ArrayList<MidiEvent>(track.getEventCount());
+		
+		for(MidiEvent E : track.getEvents()) {
+			
+			// Placed before the note is remapped, so its key is the original one
+			long tick = E.getTick();
+			if(retime) {
+				tick = MidiUtil.scaleTicks(tick, mTimeNum, mTimeDen, mRounding) + mTimeOffset;
+				tick = guard.place(E, Math.max(0, tick));
+			}
+			
+			if(!(E instanceof ChannelEvent)) {
+				events.add(E.copy(tick));
+				continue;
+			}
+			
+			int pitch = -1;
+			if(E instanceof NoteOn) {
+				pitch = ((NoteOn)E).getNoteValue() & 0x7F;
+			}
+			else if(E instanceof NoteOff) {
+				pitch = ((NoteOff)E).getNoteValue() & 0x7F;
+			}
+			else if(E instanceof NoteAftertouch) {
+				pitch = ((NoteAftertouch)E).getNoteValue() & 0x7F;
+			}
+			
+			boolean transpose = pitch >= 0 && mTranspose != 0 && pitch >= mLowPitch && pitch <= mHighPitch;
+			if(transpose && (pitch + mTranspose < 0 || pitch + mTranspose > 127)) {
+				continue;
+			}
+			
+			// The track's events are left as they are; the copy is edited
+			ChannelEvent ce = (ChannelEvent)E.copy(tick);
+			if(transpose) {
+				setPitch(ce, pitch + mTranspose);
+			}
+			if(ce instanceof NoteOn && mVelocityCurve != null) {
+				NoteOn on = (NoteOn)ce;
+				if(on.getVelocity() > 0) {
+					on.setVelocity(mVelocityCurve[on.getVelocity() & 0x7F]);
+				}
+			}
+			if(mChannelMap != null) {
+				ce.setChannel(mChannelMap[ce.getChannel()]);
+			}
+			events.add(ce);
+		}
+		
+		return events;
+	}
+	
+	/**
+	 * Keeps notes at least one tick long while their events are moved to new
+	 * ticks, given the events of a track in their original order.
+	 */
+	static class NoteGuard {
+		
+		// Latest new note on tick for each channel and pitch
+		private long[] mNoteOns = new long[16 * 128];
+		
+		public NoteGuard() {
+			for(int i = 0; i < mNoteOns.length; i++) {
+				mNoteOns[i] = -1;
+			}
+		}
+		
+		/**
+		 * The tick for E given its new tick, moved later if E would end a
+		 * note on or before its start.
+		 */
+		public long place(MidiEvent E, long tick) {
+			
+			int key;
+			boolean noteOff;
+			if(E instanceof NoteOn) {
+				NoteOn on = (NoteOn)E;
+				key = (on.getChannel() << 7) | (on.getNoteValue() & 0x7F);
+				noteOff = on.getVelocity() == 0;
+			}
+			else if(E instanceof NoteOff) {
+				NoteOff off = (NoteOff)E;
+				key = (off.getChannel() << 7) | (off.getNoteValue() & 0x7F);
+				noteOff = true;
+			}
+			else {
+				return tick;
+			}
+			
+			if(!noteOff) {
+				mNoteOns[key] = tick;
+			}
+			else if(mNoteOns[key] >= 0 && tick <= mNoteOns[key]) {
+				tick = mNoteOns[key] + 1;
+			}
+			return tick;
+		}
+	}
+	
+	private static void setPitch(MidiEvent E, int pitch) {
+		if(E instanceof NoteOn) {
+			((NoteOn)E).setNoteValue(pitch);
+		}
+		else if(E instanceof NoteOff) {
+			((NoteOff)E).setNoteValue(pitch);
+		}
+		else {
+			((NoteAftertouch)E).setNoteValue(pitch);
+		}
+	}
+}
@@ -16,8 +16,10 @@
 
 package com.voody.midilib.util;
 
-public class MidiUtil {
+import java.math.RoundingMode;
 
+public class MidiUtil {
+	
 	/**
 	 * MIDI Unit Conversions
 	 */
@@ -35,6 +37,69 @@ public class MidiUtil {
 		return msToTicks(ms, bpmToMpqn(bpm), ppq);
 	}
 	
+	/**
+	 * tick * num / den, computed exactly and rounded with the given mode.
+	 * RoundingMode.UNNECESSARY throws an ArithmeticException if the result
+	 * is not a whole tick.
+	 */
+	public static long scaleTicks(long tick, long num, long den, RoundingMode mode) {
+		
+		long product = tick * num;
+		long q = product / den;
+		long r = product - q * den;
+		if(r == 0) {
+			return q;
+		}
+		
+		// Work on the magnitude so the modes are the same as for BigDecimal
+		boolean negative = (product < 0) != (den < 0);
+		r = Math.abs(r);
+		long half = Math.abs(den) - r;
+		boolean away;
+		
+		switch(mode) {
+			case UP:
+				away = true;
+				break;
+			case DOWN:
+				away = false;
+				break;
+			case CEILING:
+				away = !negative;
+				break;
+			case FLOOR:
+				away = negative;
+				break;
+			case HALF_UP:
+				away = r >= half;
+				break;
+			case HALF_DOWN:
+				away = r > half;
+				break;
+			case HALF_EVEN:
+				away = r > half || (r == half && (q & 1) != 0);
+				break;
+			default:
+				throw new ArithmeticException("Rounding necessary");
+		}
+		
+		if(!away) {
+			return q;
+		}
+		return negative ? q - 1 : q + 1;
+	}
+	
+	public static long gcd(long a, long b) {
+		a = Math.abs(a);
+		b = Math.abs(b);
+		while(b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+	
 	public static int bpmToMpqn(float bpm) {
 		return (int)(bpm * 60000000);
 	}
@@ -64,13 +129,13 @@ public class MidiUtil {
 		byte[] buffer = new byte[byteCount];
 		
 		int[] ints = new int[byteCount];
-
+		
 		for(int i = 0; i < byteCount; i++) {
 			ints[i] = val & 0xFF;
 			buffer[byteCount - i - 1] = (byte)ints[i];
 			
 			val = val >> 8;
-		
+			
 			if(val == 0) {
 				break;
 			}
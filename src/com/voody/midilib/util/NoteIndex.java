@@ -0,0 +1,410 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.util.ArrayList;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.NoteOff;
+import com.voody.midilib.event.NoteOn;
+
+/**
+ * Notes of a track or file, paired from their NoteOn and NoteOff (or
+ * velocity 0 NoteOn) events in a single pass and stored as primitive
+ * intervals. A note covers the ticks [start, end).
+ *
+ * Notes are addressed by their id, 0 to getNoteCount() - 1. Ids are ordered
+ * by pitch, then by start tick. Each pitch forms an implicit balanced
+ * interval tree over its notes, so stabbing and tick/pitch range queries
+ * cost O(log n + k) per pitch visited.
+ */
+public class NoteIndex {
+	
+	private static final int KEYS = 16 * 128;
+	
+	private int mCount;
+	private long[] mStart;
+	private long[] mEnd;
+	private long[] mMaxEnd;
+	private int[] mPitch;
+	private int[] mChannel;
+	private int[] mVelocity;
+	private int[] mTrack;
+	private int[] mPitchOffsets;
+	
+	public NoteIndex(MidiTrack track) {
+		ArrayList<MidiTrack> tracks = new ArrayList<MidiTrack>();
+		tracks.add(track);
+		build(tracks);
+	}
+	
+	public NoteIndex(MidiFile file) {
+		build(file.getTracks());
+	}
+	
+	public int getNoteCount() {
+		return mCount;
+	}
+	
+	public long getStart(int note) {
+		return mStart[note];
+	}
+	public long getEnd(int note) {
+		return mEnd[note];
+	}
+	public long getDuration(int note) {
+		return mEnd[note] - mStart[note];
+	}
+	public int getPitch(int note) {
+		return mPitch[note];
+	}
+	public int getChannel(int note) {
+		return mChannel[note];
+	}
+	public int getVelocity(int note) {
+		return mVelocity[note];
+	}
+	public int getTrack(int note) {
+		return mTrack[note];
+	}
+	
+	/**
+	 * Ids of the notes of the given pitch are getFirstNote(p) up to, but not
+	 * including, getFirstNote(p + 1).
+	 */
+	public int getFirstNote(int pitch) {
+		if(pitch <= 0) {
+			return 0;
+		}
+		if(pitch >= 128) {
+			return mCount;
+		}
+		return mPitchOffsets[pitch];
+	}
+	
+	/**
+	 * Notes sounding at the given tick.
+	 */
+	public int[] getNotesAt(long tick) {
+		return getNotes(tick, tick + 1, 0, 127);
+	}
+	
+	/**
+	 * Notes overlapping the ticks [fromTick, toTick) with a pitch between
+	 * lowPitch and highPitch inclusive.
+	 */
+	public int[] getNotes(long fromTick, long toTick, int lowPitch, int highPitch) {
+		
+		int[] result = new int[16];
+		int count = findNotes(fromTick, toTick, lowPitch, highPitch, result);
+		
+		while(count > result.length) {
+			result = new int[count];
+			count = findNotes(fromTick, toTick, lowPitch, highPitch, result);
+		}
+		
+		int[] trimmed = new int[count];
+		System.arraycopy(result, 0, trimmed, 0, count);
+		return trimmed;
+	}
+	
+	/**
+	 * Allocation free variant of getNotes(). Writes as many matching ids as
+	 * fit into out and returns the total number of matches, which may be
+	 * larger than out.length.
+	 */
+	public int findNotes(long fromTick, long toTick, int lowPitch, int highPitch, int[] out) {
+		
+		if(lowPitch < 0) {
+			lowPitch = 0;
+		}
+		if(highPitch > 127) {
+			highPitch = 127;
+		}
+		
+		int count = 0;
+		for(int p = lowPitch; p <= highPitch; p++) {
+			count = query(mPitchOffsets[p], mPitchOffsets[p + 1], fromTick, toTick, out, count);
+		}
+		return count;
+	}
+	
+	private int query(int lo, int hi, long from, long to, int[] out, int count) {
+		
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(mMaxEnd[mid] <= from) {
+				return count;
+			}
+			
+			count = query(lo, mid, from, to, out, count);
+			
+			if(mStart[mid] >= to) {
+				return count;
+			}
+			if(mEnd[mid] > from) {
+				if(count < out.length) {
+					out[count] = mid;
+				}
+				count++;
+			}
+			lo = mid + 1;
+		}
+		return count;
+	}
+	
+	private void build(ArrayList<MidiTrack> tracks) {
+		
+		Builder b = new Builder();
+		
+		for(int t = 0; t < tracks.size(); t++) {
+			
+			MidiTrack T = tracks.get(t);
+			b.beginTrack(t);
+			
+			for(MidiEvent E : T.getEvents()) {
+				
+				if(E instanceof NoteOn) {
+					NoteOn on = (NoteOn)E;
+					if(on.getVelocity() > 0) {
+						b.noteOn(E.getTick(), on.getChannel(), on.getNoteValue(), on.getVelocity());
+					} else {
+						b.noteOff(E.getTick(), on.getChannel(), on.getNoteValue());
+					}
+				}
+				else if(E instanceof NoteOff) {
+					NoteOff off = (NoteOff)E;
+					b.noteOff(E.getTick(), off.getChannel(), off.getNoteValue());
+				}
+			}
+			
+			b.endTrack(T.getLengthInTicks());
+		}
+		
+		b.finish(this);
+	}
+	
+	private void buildTree(int lo, int hi) {
+		
+		if(lo >= hi) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		buildTree(lo, mid);
+		buildTree(mid + 1, hi);
+		
+		long max = mEnd[mid];
+		if(lo < mid) {
+			max = Math.max(max, mMaxEnd[(lo + mid) >>> 1]);
+		}
+		if(mid + 1 < hi) {
+			max = Math.max(max, mMaxEnd[(mid + 1 + hi) >>> 1]);
+		}
+		mMaxEnd[mid] = max;
+	}
+	
+	/**
+	 * Stable merge sort of the ids idx[from..to) by key[id].
+	 */
+	static void sortByKey(int[] idx, int from, int to, long[] key, int[] tmp) {
+		
+		if(to - from < 2) {
+			return;
+		}
+		if(to - from <= 16) {
+			for(int i = from + 1; i < to; i++) {
+				int v = idx[i];
+				int j = i - 1;
+				while(j >= from && key[idx[j]] > key[v]) {
+					idx[j + 1] = idx[j];
+					j--;
+				}
+				idx[j + 1] = v;
+			}
+			return;
+		}
+		
+		int mid = (from + to) >>> 1;
+		sortByKey(idx, from, mid, key, tmp);
+		sortByKey(idx, mid, to, key, tmp);
+		
+		if(key[idx[mid - 1]] <= key[idx[mid]]) {
+			return;
+		}
+		
+		System.arraycopy(idx, from, tmp, from, to - from);
+		int i = from, j = mid, k = from;
+		while(i < mid && j < to) {
+			idx[k++] = key[tmp[j]] < key[tmp[i]] ? tmp[j++] : tmp[i++];
+		}
+		while(i < mid) {
+			idx[k++] = tmp[i++];
+		}
+		while(j < to) {
+			idx[k++] = tmp[j++];
+		}
+	}
+	
+	/**
+	 * Collects notes in event order, pairing each note off with the oldest
+	 * pending note on of the same channel and pitch.
+	 */
+	private static class Builder {
+		
+		private int mCount;
+		private long[] mStart = new long[64];
+		private long[] mEnd = new long[64];
+		private int[] mKey = new int[64];
+		private int[] mVelocity = new int[64];
+		private int[] mTrack = new int[64];
+		private int[] mNextPending = new int[64];
+		
+		private int[] mHead = new int[KEYS];
+		private int[] mTail = new int[KEYS];
+		private int mTrackIndex;
+		private int mTrackFirst;
+		
+		public void beginTrack(int track) {
+			mTrackIndex = track;
+			mTrackFirst = mCount;
+			for(int i = 0; i < KEYS; i++) {
+				mHead[i] = -1;
+				mTail[i] = -1;
+			}
+		}
+		
+		public void noteOn(long tick, int channel, int pitch, int velocity) {
+			
+			if(mCount == mStart.length) {
+				grow();
+			}
+			int key = (channel << 7) | (pitch & 0x7F);
+			int n = mCount++;
+			
+			mStart[n] = tick;
+			mEnd[n] = -1;
+			mKey[n] = key;
+			mVelocity[n] = velocity;
+			mTrack[n] = mTrackIndex;
+			mNextPending[n] = -1;
+			
+			if(mTail[key] < 0) {
+				mHead[key] = n;
+			} else {
+				mNextPending[mTail[key]] = n;
+			}
+			mTail[key] = n;
+		}
+		
+		public void noteOff(long tick, int channel, int pitch) {
+			
+			int key = (channel << 7) | (pitch & 0x7F);
+			int n = mHead[key];
+			if(n < 0) {
+				return;
+			}
+			
+			mEnd[n] = tick;
+			mHead[key] = mNextPending[n];
+			if(mHead[key] < 0) {
+				mTail[key] = -1;
+			}
+		}
+		
+		public void endTrack(long lastTick) {
+			// Notes still held at the end of the track last until its final event
+			for(int n = mTrackFirst; n < mCount; n++) {
+				if(mEnd[n] < 0) {
+					mEnd[n] = Math.max(lastTick, mStart[n]);
+				}
+			}
+		}
+		
+		public void finish(NoteIndex index) {
+			
+			int n = mCount;
+			
+			// Counting sort by pitch, then a stable sort by start within each pitch
+			int[] offsets = new int[129];
+			for(int i = 0; i < n; i++) {
+				offsets[(mKey[i] & 0x7F) + 1]++;
+			}
+			for(int p = 0; p < 128; p++) {
+				offsets[p + 1] += offsets[p];
+			}
+			
+			int[] order = new int[n];
+			int[] fill = new int[128];
+			System.arraycopy(offsets, 0, fill, 0, 128);
+			for(int i = 0; i < n; i++) {
+				order[fill[mKey[i] & 0x7F]++] = i;
+			}
+			
+			int[] tmp = new int[n];
+			for(int p = 0; p < 128; p++) {
+				sortByKey(order, offsets[p], offsets[p + 1], mStart, tmp);
+			}
+			
+			index.mCount = n;
+			index.mStart = new long[n];
+			index.mEnd = new long[n];
+			index.mMaxEnd = new long[n];
+			index.mPitch = new int[n];
+			index.mChannel = new int[n];
+			index.mVelocity = new int[n];
+			index.mTrack = new int[n];
+			index.mPitchOffsets = offsets;
+			
+			for(int i = 0; i < n; i++) {
+				int src = order[i];
+				index.mStart[i] = mStart[src];
+				index.mEnd[i] = mEnd[src];
+				index.mPitch[i] = mKey[src] & 0x7F;
+				index.mChannel[i] = mKey[src] >> 7;
+				index.mVelocity[i] = mVelocity[src];
+				index.mTrack[i] = mTrack[src];
+			}
+			
+			for(int p = 0; p < 128; p++) {
+				index.buildTree(offsets[p], offsets[p + 1]);
+			}
+		}
+		
+		private void grow() {
+			int size = mStart.length * 2;
+			mStart = grow(mStart, size);
+			mEnd = grow(mEnd, size);
+			mKey = grow(mKey, size);
+			mVelocity = grow(mVelocity, size);
+			mTrack = grow(mTrack, size);
+			mNextPending = grow(mNextPending, size);
+		}
+		
+		private static long[] grow(long[] a, int size) {
+			long[] b = new long[size];
+			System.arraycopy(a, 0, b, 0, a.length);
+			return b;
+		}
+		private static int[] grow(int[] a, int size) {
+			int[] b = new int[size];
+			System.arraycopy(a, 0, b, 0, a.length);
+			return b;
+		}
+	}
+}
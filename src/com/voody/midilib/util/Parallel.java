@@ -0,0 +1,146 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a task for each index of a range on a shared pool of daemon threads,
+ * one per processor. The calling thread takes part and only waits for
+ * indices already started elsewhere, so tasks may themselves call
+ * forEach() without starving the pool.
+ */
+public class Parallel {
+	
+	public interface Task {
+		public void run(int index);
+	}
+	
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	private static ExecutorService sExecutor;
+	
+	public static int getThreadCount() {
+		return THREADS;
+	}
+	
+	/**
+	 * Runs task.run(i) for i from 0 to count - 1 and returns when all have
+	 * finished. The first exception thrown by a task is rethrown here.
+	 */
+	public static void forEach(final int count, final Task task) {
+		
+		if(count <= 0) {
+			return;
+		}
+		if(count == 1 || THREADS == 1) {
+			for(int i = 0; i < count; i++) {
+				task.run(i);
+			}
+			return;
+		}
+		
+		final AtomicInteger next = new AtomicInteger();
+		final Batch batch = new Batch(count);
+		
+		Runnable worker = new Runnable() {
+			public void run() {
+				int i;
+				while((i = next.getAndIncrement()) < count) {
+					try {
+						task.run(i);
+					} catch(Throwable t) {
+						batch.fail(t);
+					} finally {
+						batch.done();
+					}
+				}
+			}
+		};
+		
+		ExecutorService executor = getExecutor();
+		int workers = Math.min(count, THREADS) - 1;
+		for(int w = 0; w < workers; w++) {
+			executor.execute(worker);
+		}
+		worker.run();
+		
+		batch.await();
+	}
+	
+	private static synchronized ExecutorService getExecutor() {
+		if(sExecutor == null) {
+			sExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+				private int mCount;
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "midilib-parallel-" + (mCount++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return sExecutor;
+	}
+	
+	private static class Batch {
+		
+		private int mRemaining;
+		private Throwable mFailure;
+		
+		public Batch(int count) {
+			mRemaining = count;
+		}
+		
+		public synchronized void done() {
+			if(--mRemaining == 0) {
+				notifyAll();
+			}
+		}
+		
+		public synchronized void fail(Throwable t) {
+			if(mFailure == null) {
+				mFailure = t;
+			}
+		}
+		
+		public synchronized void await() {
+			boolean interrupted = false;
+			while(mRemaining > 0) {
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			
+			if(mFailure instanceof RuntimeException) {
+				throw (RuntimeException)mFailure;
+			}
+			if(mFailure instanceof Error) {
+				throw (Error)mFailure;
+			}
+			if(mFailure != null) {
+				throw new RuntimeException(mFailure);
+			}
+		}
+	}
+}
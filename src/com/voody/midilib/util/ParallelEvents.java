@@ -0,0 +1,263 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.NoteOn;
+
+/**
+ * Runs analytics over the events of a track or file on all processors.
+ * The events are split into chunks of about equal size whose bounds fall
+ * between ticks, so all events at a tick land in the same chunk. Each
+ * chunk is reduced on its own, in order, and the partial results are
+ * combined in chunk order, so a reduction sees the events as if it had
+ * walked them sequentially.
+ *
+ * The events of a file are walked merged by tick, as MergedEventIterator
+ * does. Tracks must not be edited while they are processed, unless they
+ * are in concurrent mode.
+ */
+public class ParallelEvents {
+	
+	/**
+	 * A reduction over events. accumulate() is only called for one result
+	 * at a time, but results of different chunks are built concurrently.
+	 */
+	public interface Reducer<A> {
+		public A create();
+		public void accumulate(A result, MidiEvent E);
+		public A combine(A first, A second);
+	}
+	
+	/**
+	 * Called for every event, from several threads at once.
+	 */
+	public interface Visitor {
+		public void visit(MidiEvent E);
+	}
+	
+	private static final int MIN_CHUNK = 1024;
+	private static final int CHUNKS_PER_THREAD = 4;
+	
+	public static <A> A reduce(MidiTrack track, final Reducer<A> reducer) {
+		
+		final MidiEvent[] events = track.getEvents().toArray(new MidiEvent[0]);
+		final int[] bounds = splitByIndex(events);
+		final int chunks = bounds.length - 1;
+		
+		final ArrayList<A> partials = new ArrayList<A>(chunks);
+		for(int i = 0; i < chunks; i++) {
+			partials.add(null);
+		}
+		
+		Parallel.forEach(chunks, new Parallel.Task() {
+			public void run(int index) {
+				A result = reducer.create();
+				for(int i = bounds[index]; i < bounds[index + 1]; i++) {
+					reducer.accumulate(result, events[i]);
+				}
+				partials.set(index, result);
+			}
+		});
+		return combine(partials, reducer);
+	}
+	
+	public static <A> A reduce(MidiFile file, final Reducer<A> reducer) {
+		
+		final ArrayList<MidiTrack> tracks = file.getTracks();
+		final long[] bounds = splitByTick(tracks);
+		final int chunks = bounds.length - 1;
+		
+		final ArrayList<A> partials = new ArrayList<A>(chunks);
+		for(int i = 0; i < chunks; i++) {
+			partials.add(null);
+		}
+		
+		Parallel.forEach(chunks, new Parallel.Task() {
+			public void run(int index) {
+				A result = reducer.create();
+				MergedEventIterator it = new MergedEventIterator(tracks, bounds[index], bounds[index + 1]);
+				while(it.hasNext()) {
+					reducer.accumulate(result, it.next());
+				}
+				partials.set(index, result);
+			}
+		});
+		return combine(partials, reducer);
+	}
+	
+	public static void forEach(MidiTrack track, Visitor visitor) {
+		reduce(track, new VisitingReducer(visitor));
+	}
+	
+	public static void forEach(MidiFile file, Visitor visitor) {
+		reduce(file, new VisitingReducer(visitor));
+	}
+	
+	/**
+	 * Pitches of the note ons of the track, in event order.
+	 */
+	public static int[] getPitches(MidiTrack track) {
+		
+		final MidiEvent[] events = track.getEvents().toArray(new MidiEvent[0]);
+		final int[] bounds = splitByIndex(events);
+		final int chunks = bounds.length - 1;
+		
+		// Count each chunk's notes, then let each chunk fill its own part
+		final int[] offsets = new int[chunks + 1];
+		Parallel.forEach(chunks, new Parallel.Task() {
+			public void run(int index) {
+				int count = 0;
+				for(int i = bounds[index]; i < bounds[index + 1]; i++) {
+					if(isNoteStart(events[i])) {
+						count++;
+					}
+				}
+				offsets[index + 1] = count;
+			}
+		});
+		for(int i = 0; i < chunks; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		
+		final int[] pitches = new int[offsets[chunks]];
+		Parallel.forEach(chunks, new Parallel.Task() {
+			public void run(int index) {
+				int n = offsets[index];
+				for(int i = bounds[index]; i < bounds[index + 1]; i++) {
+					if(isNoteStart(events[i])) {
+						pitches[n++] = ((NoteOn)events[i]).getNoteValue() & 0x7F;
+					}
+				}
+			}
+		});
+		return pitches;
+	}
+	
+	/**
+	 * Tick bounds splitting the events of the tracks into chunks of about
+	 * equal size: chunk i holds the ticks from bounds[i] up to, but not
+	 * including, bounds[i + 1]. The last bound is Long.MAX_VALUE.
+	 */
+	public static long[] splitByTick(List<MidiTrack> tracks) {
+		
+		int total = 0;
+		for(MidiTrack T : tracks) {
+			total += T.getEventCount();
+		}
+		int chunks = getChunkCount(total);
+		if(chunks == 1) {
+			return new long[] { 0, Long.MAX_VALUE };
+		}
+		
+		// Sample the ticks of all tracks, a few per chunk, and cut at their quantiles
+		int stride = Math.max(1, total / (chunks * 8));
+		long[] samples = new long[total / stride + tracks.size()];
+		int count = 0;
+		for(MidiTrack T : tracks) {
+			int i = 0;
+			for(MidiEvent E : T.getEvents()) {
+				if(i++ % stride == 0 && count < samples.length) {
+					samples[count++] = E.getTick();
+				}
+			}
+		}
+		Arrays.sort(samples, 0, count);
+		
+		long[] bounds = new long[chunks + 1];
+		int n = 1;
+		for(int c = 1; c < chunks; c++) {
+			long tick = samples[(int)((long)count * c / chunks)];
+			if(tick > bounds[n - 1]) {
+				bounds[n++] = tick;
+			}
+		}
+		bounds[n++] = Long.MAX_VALUE;
+		
+		long[] trimmed = new long[n];
+		System.arraycopy(bounds, 0, trimmed, 0, n);
+		return trimmed;
+	}
+	
+	// Index bounds of the chunks of a sorted event array, moved forward so
+	// that no tick is split between two chunks
+	private static int[] splitByIndex(MidiEvent[] events) {
+		
+		int chunks = getChunkCount(events.length);
+		int[] bounds = new int[chunks + 1];
+		int n = 1;
+		for(int c = 1; c < chunks; c++) {
+			int i = Math.max(bounds[n - 1], (int)((long)events.length * c / chunks));
+			while(i > 0 && i < events.length && events[i].getTick() == events[i - 1].getTick()) {
+				i++;
+			}
+			if(i > bounds[n - 1] && i < events.length) {
+				bounds[n++] = i;
+			}
+		}
+		bounds[n++] = events.length;
+		
+		int[] trimmed = new int[n];
+		System.arraycopy(bounds, 0, trimmed, 0, n);
+		return trimmed;
+	}
+	
+	private static int getChunkCount(int events) {
+		if(Parallel.getThreadCount() == 1) {
+			return 1;
+		}
+		int chunks = Math.min(Parallel.getThreadCount() * CHUNKS_PER_THREAD, events / MIN_CHUNK);
+		return Math.max(1, chunks);
+	}
+	
+	private static <A> A combine(ArrayList<A> partials, Reducer<A> reducer) {
+		A result = partials.get(0);
+		for(int i = 1; i < partials.size(); i++) {
+			result = reducer.combine(result, partials.get(i));
+		}
+		return result;
+	}
+	
+	private static boolean isNoteStart(MidiEvent E) {
+		return E instanceof NoteOn && ((NoteOn)E).getVelocity() > 0;
+	}
+	
+	private static class VisitingReducer implements Reducer<Object> {
+		
+		private Visitor mVisitor;
+		
+		public VisitingReducer(Visitor visitor) {
+			mVisitor = visitor;
+		}
+		
+		public Object create() {
+			return null;
+		}
+		public void accumulate(Object result, MidiEvent E) {
+			mVisitor.visit(E);
+		}
+		public Object combine(Object first, Object second) {
+			return null;
+		}
+	}
+}
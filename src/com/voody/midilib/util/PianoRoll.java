@@ -0,0 +1,289 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import com.voody.midilib.MidiFile;
+
+/**
+ * Renders the notes of a file as a piano roll: a matrix of time steps by
+ * 128 pitches, stored row by row, so the cell of a step and pitch is at
+ * offset + step * PITCHES + pitch. The rows are written straight into
+ * arrays, BitSets or ByteBuffers the caller provides, a window of steps at
+ * a time, without creating any objects per note.
+ *
+ * A step is a fixed number of ticks, or a fixed time converted through the
+ * tempo map. A note fills every step its ticks [start, end) overlap.
+ */
+public class PianoRoll {
+	
+	public static final int PITCHES = 128;
+	
+	/** Cells hold the velocity of the loudest note sounding */
+	public static final int VELOCITY = 0;
+	/** Cells are 1 where any note is sounding */
+	public static final int ACTIVE = 1;
+	/** Cells are 1 in the step where a note starts */
+	public static final int ONSET = 2;
+	
+	// Pitches rendered by one parallel task
+	private static final int PITCH_GROUP = 8;
+	
+	private NoteIndex mNotes;
+	private TempoMap mTempoMap;
+	
+	private long mStepTicks;
+	private long mStepMicros;
+	private long mLastTick = -1;
+	
+	public PianoRoll(MidiFile file) {
+		this(file.getCache().getNoteIndex(), file.getCache().getTempoMap());
+	}
+	
+	public PianoRoll(NoteIndex notes, TempoMap tempoMap) {
+		mNotes = notes;
+		mTempoMap = tempoMap;
+		mStepTicks = Math.max(1, tempoMap.getResolution() / 4);
+		
+		for(int i = 0; i < notes.getNoteCount(); i++) {
+			mLastTick = Math.max(mLastTick, Math.max(notes.getStart(i), notes.getEnd(i) - 1));
+		}
+	}
+	
+	/**
+	 * Makes each step the given number of ticks. The default is a 16th note.
+	 */
+	public void setStepTicks(long ticks) {
+		if(ticks <= 0) {
+			System.err.println("Error: Step must be at least one tick.");
+			return;
+		}
+		mStepTicks = ticks;
+		mStepMicros = 0;
+	}
+	
+	/**
+	 * Makes each step the given number of milliseconds of playing time.
+	 */
+	public void setStepMs(double ms) {
+		long micros = Math.round(ms * 1000);
+		if(micros <= 0) {
+			System.err.println("Error: Step must be at least one microsecond.");
+			return;
+		}
+		mStepMicros = micros;
+		mStepTicks = 0;
+	}
+	
+	/**
+	 * The step containing the tick.
+	 */
+	public long getStep(long tick) {
+		if(mStepMicros > 0) {
+			return mTempoMap.tickToMicros(tick) / mStepMicros;
+		}
+		return tick / mStepTicks;
+	}
+	
+	/**
+	 * Steps up to and including the last one a note falls in.
+	 */
+	public int getStepCount() {
+		return mLastTick < 0 ? 0 : (int)getStep(mLastTick) + 1;
+	}
+	
+	/**
+	 * Writes steps [fromStep, fromStep + steps) to out from offset on,
+	 * overwriting what was there. Velocities are scaled to 0 to 1.
+	 */
+	public void render(final float[] out, final int offset, int fromStep, int steps, int mode) {
+		checkBounds(out.length, offset, steps);
+		render(new Target() {
+			public void clear(int from, int to) {
+				for(int i = from; i < to; i++) {
+					out[offset + i] = 0;
+				}
+			}
+			public void put(int cell, int value) {
+				float v = value / 127f;
+				if(v > out[offset + cell]) {
+					out[offset + cell] = v;
+				}
+			}
+		}, fromStep, steps, mode);
+	}
+	
+	/**
+	 * Writes steps [fromStep, fromStep + steps) to out from offset on,
+	 * overwriting what was there. Velocities are kept as 0 to 127.
+	 */
+	public void render(final byte[] out, final int offset, int fromStep, int steps, int mode) {
+		checkBounds(out.length, offset, steps);
+		render(new Target() {
+			public void clear(int from, int to) {
+				for(int i = from; i < to; i++) {
+					out[offset + i] = 0;
+				}
+			}
+			public void put(int cell, int value) {
+				if(value > out[offset + cell]) {
+					out[offset + cell] = (byte)value;
+				}
+			}
+		}, fromStep, steps, mode);
+	}
+	
+	/**
+	 * Sets the bits of the cells where notes are found, from offset on, and
+	 * clears the rest of the window. BitSet cannot be written by several
+	 * threads, so this runs on the calling thread.
+	 */
+	public void render(final BitSet out, final int offset, int fromStep, int steps, int mode) {
+		checkBounds(Integer.MAX_VALUE, offset, steps);
+		out.clear(offset, offset + steps * PITCHES);
+		Target target = new Target() {
+			public void clear(int from, int to) {
+			}
+			public void put(int cell, int value) {
+				out.set(offset + cell);
+			}
+		};
+		int[] notes = new int[16];
+		for(int pitch = 0; pitch < PITCHES; pitch++) {
+			notes = renderPitch(target, pitch, fromStep, steps, mode, notes);
+		}
+	}
+	
+	/**
+	 * Writes steps [fromStep, fromStep + steps) to out from its position on,
+	 * in its byte order, as floats like render(float[]) or as bytes like
+	 * render(byte[]). The position is moved past the window.
+	 */
+	public void render(final ByteBuffer out, int fromStep, int steps, int mode, final boolean floats) {
+		
+		final int size = floats ? 4 : 1;
+		final int base = out.position();
+		checkBounds(out.remaining() / size, 0, steps);
+		
+		render(new Target() {
+			public void clear(int from, int to) {
+				for(int i = from; i < to; i++) {
+					if(floats) {
+						out.putFloat(base + i * 4, 0);
+					} else {
+						out.put(base + i, (byte)0);
+					}
+				}
+			}
+			public void put(int cell, int value) {
+				if(floats) {
+					float v = value / 127f;
+					if(v > out.getFloat(base + cell * 4)) {
+						out.putFloat(base + cell * 4, v);
+					}
+				}
+				else if(value > out.get(base + cell)) {
+					out.put(base + cell, (byte)value);
+				}
+			}
+		}, fromStep, steps, mode);
+		
+		out.position(base + steps * PITCHES * size);
+	}
+	
+	private interface Target {
+		// Clears the cells [from, to) of the window
+		public void clear(int from, int to);
+		// Raises the cell to at least value
+		public void put(int cell, int value);
+	}
+	
+	// Groups of pitches own disjoint columns, so they render in parallel
+	private void render(final Target target, final int fromStep, final int steps, final int mode) {
+		Parallel.forEach(PITCHES / PITCH_GROUP, new Parallel.Task() {
+			public void run(int group) {
+				int low = group * PITCH_GROUP;
+				for(int s = 0; s < steps; s++) {
+					target.clear(s * PITCHES + low, s * PITCHES + low + PITCH_GROUP);
+				}
+				int[] notes = new int[16];
+				for(int pitch = low; pitch < low + PITCH_GROUP; pitch++) {
+					notes = renderPitch(target, pitch, fromStep, steps, mode, notes);
+				}
+			}
+		});
+	}
+	
+	// Renders the notes of the pitch overlapping the window, found with an
+	// interval query into notes, which is grown if too small and returned
+	private int[] renderPitch(Target target, int pitch, long fromStep, int steps, int mode, int[] notes) {
+		
+		long toStep = fromStep + steps;
+		
+		// From a tick earlier, so notes of no length at the first tick of
+		// the window are found too
+		long fromTick = Math.max(0, getFirstTick(fromStep) - 1);
+		long toTick = getFirstTick(toStep);
+		int count = mNotes.findNotes(fromTick, toTick, pitch, pitch, notes);
+		if(count > notes.length) {
+			notes = new int[count];
+			mNotes.findNotes(fromTick, toTick, pitch, pitch, notes);
+		}
+		
+		for(int i = 0; i < count; i++) {
+			int note = notes[i];
+			long start = mNotes.getStart(note);
+			long first = getStep(start);
+			
+			int value = mode == VELOCITY ? mNotes.getVelocity(note) : 1;
+			if(mode == ONSET) {
+				if(first >= fromStep) {
+					target.put((int)(first - fromStep) * PITCHES + pitch, value);
+				}
+				continue;
+			}
+			
+			long end = Math.max(start, mNotes.getEnd(note) - 1);
+			long from = Math.max(first, fromStep);
+			long to = Math.min(getStep(end) + 1, toStep);
+			for(long s = from; s < to; s++) {
+				target.put((int)(s - fromStep) * PITCHES + pitch, value);
+			}
+		}
+		return notes;
+	}
+	
+	// The first tick in the step or a later one
+	private long getFirstTick(long step) {
+		if(mStepMicros > 0) {
+			long tick = mTempoMap.microsToTick(step * mStepMicros);
+			while(getStep(tick) < step) {
+				tick++;
+			}
+			return tick;
+		}
+		return step * mStepTicks;
+	}
+	
+	private static void checkBounds(int length, int offset, int steps) {
+		if(offset < 0 || steps < 0 || (long)steps * PITCHES > length - (long)offset) {
+			throw new IndexOutOfBoundsException("Window of " + steps + " steps at " + offset + " does not fit in " + length);
+		}
+	}
+}
@@ -0,0 +1,322 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import java.util.ArrayList;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.NoteOff;
+import com.voody.midilib.event.NoteOn;
+import com.voody.midilib.event.meta.MetaEvent;
+import com.voody.midilib.event.meta.TimeSignature;
+
+/**
+ * Moves notes towards a rhythmic grid. The grid divides every bar of the
+ * file's time signatures into equal steps, restarting at each bar line, and
+ * swing delays every second step. Strength moves notes part of the way.
+ *
+ * A note's end follows its start so the duration is kept, unless length
+ * quantization is on, in which case the duration is rounded to whole grid
+ * steps. Notes are paired as in NoteIndex. Other events are not moved.
+ * Each track is rebuilt once, and the tracks of a file are quantized in
+ * parallel.
+ */
+public class Quantizer {
+	
+	private int mResolution;
+	
+	private int mSegments;
+	private long[] mSegmentTicks;
+	private long[] mBarLengths;
+	
+	private int mDivision = 16;
+	private float mStrength = 1.0f;
+	private float mSwing;
+	private boolean mQuantizeLength;
+	private long mFromTick = 0;
+	private long mToTick = Long.MAX_VALUE;
+	
+	/**
+	 * A grid in 4/4 throughout.
+	 */
+	public Quantizer(int resolution) {
+		mResolution = resolution > 0 ? resolution : MidiFile.DEFAULT_RESOLUTION;
+		mSegments = 1;
+		mSegmentTicks = new long[] { 0 };
+		mBarLengths = new long[] { 4L * mResolution };
+	}
+	
+	/**
+	 * A grid following the resolution and time signatures of the file.
+	 */
+	public Quantizer(MidiFile file) {
+		this(file.getResolution());
+		
+		ArrayList<MidiEvent> signatures = new ArrayList<MidiEvent>();
+		for(MidiTrack T : file.getTracks()) {
+			signatures.addAll(T.getMetaEvents(MetaEvent.TIME_SIGNATURE));
+		}
+		if(signatures.size() == 0) {
+			return;
+		}
+		
+		long[] ticks = new long[signatures.size() + 1];
+		long[] bars = new long[signatures.size() + 1];
+		int count = 1;
+		ticks[0] = 0;
+		bars[0] = 4L * mResolution;
+		
+		// Signatures of all tracks, in tick order; the last one at a tick wins
+		for(MidiEvent E : sortByTick(signatures)) {
+			TimeSignature ts = (TimeSignature)E;
+			long bar = (long)ts.getNumerator() * 4 * mResolution / Math.max(1, ts.getRealDenominator());
+			if(bar <= 0) {
+				continue;
+			}
+			if(ticks[count - 1] == ts.getTick()) {
+				bars[count - 1] = bar;
+			} else {
+				ticks[count] = ts.getTick();
+				bars[count] = bar;
+				count++;
+			}
+		}
+		
+		mSegments = count;
+		mSegmentTicks = ticks;
+		mBarLengths = bars;
+	}
+	
+	/**
+	 * Steps per whole note: 4 for quarter notes, 16 for sixteenths, 12 for
+	 * eighth note triplets.
+	 */
+	public void setGrid(int division) {
+		if(division > 0) {
+			mDivision = division;
+		}
+	}
+	public int getGrid() {
+		return mDivision;
+	}
+	
+	/**
+	 * 1 moves notes onto the grid, 0.5 halfway there, 0 not at all.
+	 */
+	public void setStrength(float strength) {
+		mStrength = Math.max(0, Math.min(1, strength));
+	}
+	
+	/**
+	 * Delay of every second grid step, as a fraction of a step: 0 is
+	 * straight and 1/3 a triplet feel.
+	 */
+	public void setSwing(float swing) {
+		mSwing = Math.max(0, Math.min(0.99f, swing));
+	}
+	
+	public void setQuantizeLength(boolean quantize) {
+		mQuantizeLength = quantize;
+	}
+	
+	/**
+	 * Only notes starting from fromTick up to, but not including, toTick are
+	 * quantized.
+	 */
+	public void setRange(long fromTick, long toTick) {
+		mFromTick = fromTick;
+		mToTick = toTick;
+	}
+	
+	/**
+	 * The grid point nearest to the given tick.
+	 */
+	public long getGridTick(long tick) {
+		
+		int seg = segmentForTick(tick);
+		long segStart = mSegmentTicks[seg];
+		long barLength = mBarLengths[seg];
+		long segEnd = seg + 1 < mSegments ? mSegmentTicks[seg + 1] : Long.MAX_VALUE;
+		
+		long barStart = segStart + (tick - segStart) / barLength * barLength;
+		long barEnd = Math.min(barStart + barLength, segEnd);
+		
+		long k = (tick - barStart) * mDivision / (4L * mResolution);
+		long before = barStart + stepOffset(k);
+		long after = Math.min(barStart + stepOffset(k + 1), barEnd);
+		if(before > tick) {
+			// A swung step can start after the tick
+			after = before;
+			before = barStart + stepOffset(k - 1);
+		}
+		
+		return tick - before < after - tick ? before : after;
+	}
+	
+	/**
+	 * The tick moved towards the grid by the strength.
+	 */
+	public long quantize(long tick) {
+		return tick + Math.round((getGridTick(tick) - tick) * (double)mStrength);
+	}
+	
+	public void apply(MidiFile file) {
+		final ArrayList<MidiTrack> tracks = file.getTracks();
+		Parallel.forEach(tracks.size(), new Parallel.Task() {
+			public void run(int index) {
+				apply(tracks.get(index));
+			}
+		});
+	}
+	
+	public void apply(MidiTrack track) {
+		
+		if(track.isReadOnly()) {
+			System.err.println("Error: Cannot quantize a snapshot track.");
+			return;
+		}
+		
+		ArrayList<MidiEvent> events = new ArrayList<MidiEvent>(track.getEvents());
+		int n = events.size();
+		
+		// Pending note ons of each channel and pitch, oldest first, as a
+		// linked list through next[]
+		int[] head = new int[16 * 128];
+		int[] tail = new int[16 * 128];
+		for(int i = 0; i < head.length; i++) {
+			head[i] = -1;
+			tail[i] = -1;
+		}
+		int[] next = new int[n];
+		long[] newStart = new long[n];
+		long[] newTicks = new long[n];
+		
+		for(int i = 0; i < n; i++) {
+			
+			MidiEvent E = events.get(i);
+			newTicks[i] = E.getTick();
+			
+			int key;
+			boolean noteOff;
+			if(E instanceof NoteOn) {
+				NoteOn on = (NoteOn)E;
+				key = (on.getChannel() << 7) | (on.getNoteValue() & 0x7F);
+				noteOff = on.getVelocity() == 0;
+			}
+			else if(E instanceof NoteOff) {
+				NoteOff off = (NoteOff)E;
+				key = (off.getChannel() << 7) | (off.getNoteValue() & 0x7F);
+				noteOff = true;
+			}
+			else {
+				continue;
+			}
+			
+			if(!noteOff) {
+				long tick = E.getTick();
+				newStart[i] = tick >= mFromTick && tick < mToTick ? quantize(tick) : tick;
+				newTicks[i] = newStart[i];
+				
+				next[i] = -1;
+				if(tail[key] < 0) {
+					head[key] = i;
+				} else {
+					next[tail[key]] = i;
+				}
+				tail[key] = i;
+				continue;
+			}
+			
+			int on = head[key];
+			if(on < 0) {
+				continue;
+			}
+			head[key] = next[on];
+			if(head[key] < 0) {
+				tail[key] = -1;
+			}
+			
+			long start = events.get(on).getTick();
+			if(newStart[on] == start && !(mQuantizeLength && start >= mFromTick && start < mToTick)) {
+				continue;
+			}
+			newTicks[i] = Math.max(newStart[on] + 1, newEnd(start, E.getTick(), newStart[on]));
+		}
+		
+		// Moved events are copied, as snapshots and concurrent readers may
+		// still hold the originals
+		for(int i = 0; i < n; i++) {
+			MidiEvent E = events.get(i);
+			if(newTicks[i] != E.getTick()) {
+				events.set(i, E.copy(newTicks[i]));
+			}
+		}
+		track.replaceEvents(events);
+	}
+	
+	private long newEnd(long start, long end, long quantizedStart) {
+		
+		long duration = end - start;
+		if(!mQuantizeLength) {
+			return quantizedStart + duration;
+		}
+		
+		long step = Math.max(1, 4L * mResolution / mDivision);
+		long steps = Math.max(1, (duration + step / 2) / step);
+		return quantizedStart + duration + Math.round((steps * step - duration) * (double)mStrength);
+	}
+	
+	// Offset of grid step k from the start of its bar
+	private long stepOffset(long k) {
+		long offset = k * 4L * mResolution / mDivision;
+		if((k & 1) != 0) {
+			offset += Math.round(mSwing * 4.0 * mResolution / mDivision);
+		}
+		return offset;
+	}
+	
+	private int segmentForTick(long tick) {
+		int lo = 0, hi = mSegments - 1;
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if(mSegmentTicks[mid] <= tick) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+	
+	private static ArrayList<MidiEvent> sortByTick(ArrayList<MidiEvent> events) {
+		long[] ticks = new long[events.size()];
+		int[] idx = new int[events.size()];
+		for(int i = 0; i < idx.length; i++) {
+			ticks[i] = events.get(i).getTick();
+			idx[i] = i;
+		}
+		NoteIndex.sortByKey(idx, 0, idx.length, ticks, new int[idx.length]);
+		
+		ArrayList<MidiEvent> sorted = new ArrayList<MidiEvent>(idx.length);
+		for(int i : idx) {
+			sorted.add(events.get(i));
+		}
+		return sorted;
+	}
+}
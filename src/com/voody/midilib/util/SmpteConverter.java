@@ -0,0 +1,257 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.meta.MetaEvent;
+import com.voody.midilib.event.meta.SmpteOffset;
+import com.voody.midilib.event.meta.SmpteOffset.FrameRate;
+
+/**
+ * Converts ticks to SMPTE timecodes and back, following the file's tempo
+ * changes and starting from the timecode of its SmpteOffset event.
+ *
+ * Timecodes are packed into a single int (see pack()) so whole arrays can
+ * be converted without creating an object per event. Subframes are
+ * hundredths of a frame. Drop-frame timecode at 29.97 fps skips frame
+ * numbers 0 and 1 at the start of every minute not divisible by ten.
+ */
+public class SmpteConverter {
+	
+	public static final int SUBFRAMES = 100;
+	
+	private TempoMap mTempoMap;
+	private FrameRate mFrameRate;
+	
+	private int mOffsetTimecode;
+	private long mOffsetTick;
+	private long mOffsetMicros;
+	private long mOffsetSubframes;
+	
+	public SmpteConverter(MidiFile file) {
+		this(new TempoMap(file), findOffset(file));
+	}
+	
+	/**
+	 * Without an offset event the timecode starts at 00:00:00:00 on tick 0,
+	 * at 30 fps.
+	 */
+	public SmpteConverter(TempoMap tempoMap, SmpteOffset offset) {
+		mTempoMap = tempoMap;
+		
+		if(offset != null && offset.getFrameRate() != null) {
+			mFrameRate = offset.getFrameRate();
+			mOffsetTick = offset.getTick();
+			mOffsetTimecode = pack(offset.getHours(), offset.getMinutes(), offset.getSeconds(), offset.getFrames(), offset.getSubFrames());
+		} else {
+			mFrameRate = FrameRate.FRAME_RATE_30;
+			mOffsetTick = 0;
+			mOffsetTimecode = 0;
+		}
+		update();
+	}
+	
+	/**
+	 * Overrides the frame rate of the offset event, e.g. to view a file in
+	 * another video format. The offset keeps its hh:mm:ss:ff label.
+	 */
+	public void setFrameRate(FrameRate fps) {
+		mFrameRate = fps;
+		update();
+	}
+	public FrameRate getFrameRate() {
+		return mFrameRate;
+	}
+	
+	public TempoMap getTempoMap() {
+		return mTempoMap;
+	}
+	
+	public int tickToTimecode(long tick) {
+		return subframesToTimecode(microsToSubframes(mTempoMap.tickToMicros(tick)));
+	}
+	
+	public long timecodeToTick(int timecode) {
+		return mTempoMap.microsToTick(subframesToMicros(timecodeToSubframes(timecode)));
+	}
+	
+	public void ticksToTimecodes(long[] ticks, int[] timecodes, int count) {
+		
+		long[] micros = new long[count];
+		mTempoMap.ticksToMicros(ticks, micros, count);
+		
+		for(int i = 0; i < count; i++) {
+			timecodes[i] = subframesToTimecode(microsToSubframes(micros[i]));
+		}
+	}
+	
+	public void timecodesToTicks(int[] timecodes, long[] ticks, int count) {
+		
+		for(int i = 0; i < count; i++) {
+			ticks[i] = subframesToMicros(timecodeToSubframes(timecodes[i]));
+		}
+		mTempoMap.microsToTicks(ticks, ticks, count);
+	}
+	
+	private void update() {
+		mOffsetMicros = mTempoMap.tickToMicros(mOffsetTick);
+		mOffsetSubframes = labelToFrame(mOffsetTimecode) * SUBFRAMES + getSubFrames(mOffsetTimecode);
+	}
+	
+	// Subframes elapsed since 00:00:00:00 at the given time
+	private long microsToSubframes(long micros) {
+		long elapsed = micros - mOffsetMicros;
+		long num = elapsed * mFrameRate.rateNumerator * SUBFRAMES;
+		long den = mFrameRate.rateDenominator * 1000000L;
+		
+		long sub = num / den;
+		if(num < 0 && sub * den != num) {
+			sub--;
+		}
+		return mOffsetSubframes + sub;
+	}
+	
+	private long subframesToMicros(long subframes) {
+		long num = (subframes - mOffsetSubframes) * mFrameRate.rateDenominator * 1000000L;
+		long den = (long)mFrameRate.rateNumerator * SUBFRAMES;
+		
+		// Round up so the time converts back to the same subframe
+		long elapsed = num / den;
+		if(num > 0 && elapsed * den != num) {
+			elapsed++;
+		}
+		return mOffsetMicros + elapsed;
+	}
+	
+	private int subframesToTimecode(long subframes) {
+		
+		long perDay = framesPerDay() * SUBFRAMES;
+		subframes %= perDay;
+		if(subframes < 0) {
+			subframes += perDay;
+		}
+		
+		long frame = subframes / SUBFRAMES;
+		int sub = (int)(subframes % SUBFRAMES);
+		return frameToLabel(frame) | sub;
+	}
+	
+	private long timecodeToSubframes(int timecode) {
+		return labelToFrame(timecode) * SUBFRAMES + getSubFrames(timecode);
+	}
+	
+	private long framesPerDay() {
+		int fps = mFrameRate.getFramesPerSecond();
+		if(mFrameRate.isDropFrame()) {
+			// Two frame numbers dropped in 54 of every 60 minutes
+			return fps * 86400L - 2 * (24 * 60 - 24 * 6);
+		}
+		return fps * 86400L;
+	}
+	
+	// Frame count since midnight to a packed hh:mm:ss:ff label with no subframes
+	private int frameToLabel(long frame) {
+		
+		int fps = mFrameRate.getFramesPerSecond();
+		
+		if(mFrameRate.isDropFrame()) {
+			long tenMinutes = frame / 17982;
+			long rest = frame % 17982;
+			frame += 18 * tenMinutes;
+			if(rest >= 2) {
+				frame += 2 * ((rest - 2) / 1798);
+			}
+		}
+		
+		int ff = (int)(frame % fps);
+		int ss = (int)((frame / fps) % 60);
+		int mm = (int)((frame / (fps * 60)) % 60);
+		int hh = (int)(frame / (fps * 3600L));
+		return pack(hh, mm, ss, ff, 0);
+	}
+	
+	private long labelToFrame(int timecode) {
+		
+		int fps = mFrameRate.getFramesPerSecond();
+		int hh = getHours(timecode), mm = getMinutes(timecode);
+		
+		long frame = (hh * 3600L + mm * 60 + getSeconds(timecode)) * fps + getFrames(timecode);
+		if(mFrameRate.isDropFrame()) {
+			long minutes = hh * 60L + mm;
+			frame -= 2 * (minutes - minutes / 10);
+		}
+		return frame;
+	}
+	
+	private static SmpteOffset findOffset(MidiFile file) {
+		
+		SmpteOffset first = null;
+		for(MidiTrack T : file.getTracks()) {
+			for(MidiEvent E : T.getMetaEvents(MetaEvent.SMPTE_OFFSET)) {
+				if(first == null || E.getTick() < first.getTick()) {
+					first = (SmpteOffset)E;
+				}
+				break;
+			}
+		}
+		return first;
+	}
+	
+	/**
+	 * Packed timecode layout: hours in bits 24-28, minutes 18-23, seconds
+	 * 12-17, frames 7-11 and subframes 0-6.
+	 */
+	public static int pack(int hours, int minutes, int seconds, int frames, int subframes) {
+		return ((hours & 0x1F) << 24) | ((minutes & 0x3F) << 18) | ((seconds & 0x3F) << 12)
+				| ((frames & 0x1F) << 7) | (subframes & 0x7F);
+	}
+	
+	public static int getHours(int timecode) {
+		return (timecode >> 24) & 0x1F;
+	}
+	public static int getMinutes(int timecode) {
+		return (timecode >> 18) & 0x3F;
+	}
+	public static int getSeconds(int timecode) {
+		return (timecode >> 12) & 0x3F;
+	}
+	public static int getFrames(int timecode) {
+		return (timecode >> 7) & 0x1F;
+	}
+	public static int getSubFrames(int timecode) {
+		return timecode & 0x7F;
+	}
+	
+	public static String toString(int timecode) {
+		StringBuilder sb = new StringBuilder();
+		appendTwoDigits(sb, getHours(timecode)).append(':');
+		appendTwoDigits(sb, getMinutes(timecode)).append(':');
+		appendTwoDigits(sb, getSeconds(timecode)).append(':');
+		appendTwoDigits(sb, getFrames(timecode)).append('.');
+		appendTwoDigits(sb, getSubFrames(timecode));
+		return sb.toString();
+	}
+	
+	private static StringBuilder appendTwoDigits(StringBuilder sb, int value) {
+		if(value < 10) {
+			sb.append('0');
+		}
+		return sb.append(value);
+	}
+}
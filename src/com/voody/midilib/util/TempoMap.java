@@ -0,0 +1,267 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.voody.midilib.util;
+
+import com.voody.midilib.MidiFile;
+import com.voody.midilib.MidiTrack;
+import com.voody.midilib.event.MidiEvent;
+import com.voody.midilib.event.meta.MetaEvent;
+import com.voody.midilib.event.meta.Tempo;
+
+/**
+ * Tick to wall-clock conversion for a file with any number of tempo changes.
+ *
+ * The map is a table of tempo segments, each holding its start tick, its
+ * MPQN and the time at which it starts. Start times are kept in units of
+ * microseconds * resolution, so they are exact integers and no rounding
+ * error builds up from one segment to the next. Conversions binary search
+ * the segment and round to the nearest microsecond or tick.
+ */
+public class TempoMap {
+	
+	private int mResolution;
+	
+	private int mCount;
+	private long[] mTicks;
+	private int[] mMpqn;
+	private long[] mScaledMicros;
+	
+	public TempoMap(int resolution) {
+		mResolution = resolution > 0 ? resolution : MidiFile.DEFAULT_RESOLUTION;
+		
+		mCount = 1;
+		mTicks = new long[8];
+		mMpqn = new int[8];
+		mScaledMicros = new long[8];
+		mMpqn[0] = Tempo.DEFAULT_MPQN;
+	}
+	
+	public TempoMap(MidiFile file) {
+		this(file.getResolution());
+		
+		for(MidiTrack T : file.getTracks()) {
+			for(MidiEvent E : T.getMetaEvents(MetaEvent.TEMPO)) {
+				insert(E.getTick(), ((Tempo)E).getMpqn());
+			}
+		}
+		rebuildFrom(0);
+	}
+	
+	public int getResolution() {
+		return mResolution;
+	}
+	
+	public int getTempoCount() {
+		return mCount;
+	}
+	public long getTempoTick(int i) {
+		return mTicks[i];
+	}
+	public int getTempoMpqn(int i) {
+		return mMpqn[i];
+	}
+	
+	public int getMpqnAt(long tick) {
+		return mMpqn[segmentForTick(tick)];
+	}
+	
+	public long tickToMicros(long tick) {
+		int i = segmentForTick(tick);
+		return toMicros(i, tick);
+	}
+	
+	/**
+	 * The tick nearest to the given time.
+	 */
+	public long microsToTick(long micros) {
+		int i = segmentForMicros(micros);
+		return toTick(i, micros);
+	}
+	
+	public long tickToMs(long tick) {
+		return (tickToMicros(tick) + 500) / 1000;
+	}
+	public long msToTick(long ms) {
+		return microsToTick(ms * 1000);
+	}
+	
+	/**
+	 * Converts every tick of the array, writing the times to micros (which
+	 * may be the same array). Ascending runs of ticks are converted by
+	 * walking the segments rather than searching for each one.
+	 */
+	public void ticksToMicros(long[] ticks, long[] micros, int count) {
+		
+		int seg = 0;
+		long prev = Long.MIN_VALUE;
+		
+		for(int n = 0; n < count; n++) {
+			long tick = ticks[n];
+			if(tick < prev) {
+				seg = segmentForTick(tick);
+			} else {
+				while(seg + 1 < mCount && mTicks[seg + 1] <= tick) {
+					seg++;
+				}
+			}
+			prev = tick;
+			micros[n] = toMicros(seg, tick);
+		}
+	}
+	
+	/**
+	 * Converts every time of the array, writing the ticks to ticks (which
+	 * may be the same array).
+	 */
+	public void microsToTicks(long[] micros, long[] ticks, int count) {
+		
+		int seg = 0;
+		long prev = Long.MIN_VALUE;
+		
+		for(int n = 0; n < count; n++) {
+			long us = micros[n];
+			if(us < prev) {
+				seg = segmentForMicros(us);
+			} else {
+				long scaled = us * mResolution;
+				while(seg + 1 < mCount && mScaledMicros[seg + 1] <= scaled) {
+					seg++;
+				}
+			}
+			prev = us;
+			ticks[n] = toTick(seg, us);
+		}
+	}
+	
+	/**
+	 * Records a tempo change at the given tick, replacing any tempo already
+	 * there. Only the segments from that tick onward are recomputed.
+	 */
+	public void setTempo(long tick, int mpqn) {
+		rebuildFrom(insert(tick, mpqn));
+	}
+	
+	/**
+	 * Removes the tempo change at the given tick, if any. Removing the
+	 * tempo at tick 0 restores the default tempo there.
+	 */
+	public void removeTempo(long tick) {
+		
+		int i = segmentForTick(tick);
+		if(mTicks[i] != tick) {
+			return;
+		}
+		if(i == 0) {
+			mMpqn[0] = Tempo.DEFAULT_MPQN;
+			rebuildFrom(0);
+			return;
+		}
+		
+		System.arraycopy(mTicks, i + 1, mTicks, i, mCount - i - 1);
+		System.arraycopy(mMpqn, i + 1, mMpqn, i, mCount - i - 1);
+		System.arraycopy(mScaledMicros, i + 1, mScaledMicros, i, mCount - i - 1);
+		mCount--;
+		rebuildFrom(i);
+	}
+	
+	private long toMicros(int seg, long tick) {
+		long scaled = mScaledMicros[seg] + (tick - mTicks[seg]) * mMpqn[seg];
+		return (scaled + mResolution / 2) / mResolution;
+	}
+	
+	private long toTick(int seg, long micros) {
+		long scaled = micros * mResolution - mScaledMicros[seg];
+		return mTicks[seg] + (scaled + mMpqn[seg] / 2) / mMpqn[seg];
+	}
+	
+	private int segmentForTick(long tick) {
+		int lo = 0, hi = mCount - 1;
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if(mTicks[mid] <= tick) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+	
+	private int segmentForMicros(long micros) {
+		long scaled = micros * mResolution;
+		int lo = 0, hi = mCount - 1;
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if(mScaledMicros[mid] <= scaled) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+	
+	// Adds or replaces the segment starting at tick, returning its index.
+	// Start times are left for rebuildFrom().
+	private int insert(long tick, int mpqn) {
+		
+		if(tick < 0) {
+			tick = 0;
+		}
+		if(mpqn <= 0) {
+			mpqn = Tempo.DEFAULT_MPQN;
+		}
+		
+		int i = segmentForTick(tick);
+		if(mTicks[i] == tick) {
+			mMpqn[i] = mpqn;
+			return i;
+		}
+		
+		if(mCount == mTicks.length) {
+			int size = mCount * 2;
+			long[] ticks = new long[size];
+			int[] mpqns = new int[size];
+			long[] scaled = new long[size];
+			System.arraycopy(mTicks, 0, ticks, 0, mCount);
+			System.arraycopy(mMpqn, 0, mpqns, 0, mCount);
+			System.arraycopy(mScaledMicros, 0, scaled, 0, mCount);
+			mTicks = ticks;
+			mMpqn = mpqns;
+			mScaledMicros = scaled;
+		}
+		
+		i++;
+		System.arraycopy(mTicks, i, mTicks, i + 1, mCount - i);
+		System.arraycopy(mMpqn, i, mMpqn, i + 1, mCount - i);
+		System.arraycopy(mScaledMicros, i, mScaledMicros, i + 1, mCount - i);
+		mTicks[i] = tick;
+		mMpqn[i] = mpqn;
+		mCount++;
+		return i;
+	}
+	
+	private void rebuildFrom(int i) {
+		if(i < 1) {
+			mScaledMicros[0] = 0;
+			i = 1;
+		}
+		for(; i < mCount; i++) {
+			mScaledMicros[i] = mScaledMicros[i - 1] + (mTicks[i] - mTicks[i - 1]) * mMpqn[i - 1];
+		}
+	}
+}
@@ -54,6 +54,22 @@ public class VariableLengthInt {
 		return mBytes;
 	}
 	
+	/**
+	 * Bytes the value takes when written, without building it.
+	 */
+	public static int getByteCount(long value) {
+		if(value < 0x80) {
+			return 1;
+		}
+		if(value < 0x4000) {
+			return 2;
+		}
+		if(value < 0x200000) {
+			return 3;
+		}
+		return 4;
+	}
+	
 	private void parseBytes(InputStream in) throws IOException {
 		int[] ints = new int[4];
 		